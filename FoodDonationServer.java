@@ -1,55 +1,351 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
 
 public class FoodDonationServer {
-    private static final int PORT = 8080;
-    private static final String USERS_FILE = "users.txt";
-    private static final String FOOD_FILE = "food.txt";
-    private static final String REQUESTS_FILE = "requests.txt";
+    // -Dfds.port=0 binds an ephemeral port (the chosen one is printed at startup)
+    private static final int PORT = Integer.getInteger("fds.port", 8080);
+    // -Dfds.dataDir keeps the data files somewhere other than the working directory
+    private static final String DATA_DIR = System.getProperty("fds.dataDir");
+    private static final String USERS_FILE = dataFile("users.txt");
+    private static final String FOOD_FILE = dataFile("food.txt");
+    private static final String REQUESTS_FILE = dataFile("requests.txt");
+    private static final String JOURNAL_FILE = dataFile("journal.log");
+    // Binary copy of all three data files as of the last compaction, for fast startup
+    private static final String SNAPSHOT_FILE = dataFile("snapshot.bin");
+    // Gzip segments of closed records, moved out of food.txt / requests.txt by compaction
+    private static final String ARCHIVE_DIR = dataFile("archive");
     
-    // Thread-safe data structures with locks
-    private static final ReentrantReadWriteLock userLock = new ReentrantReadWriteLock(true);
-    private static final ReentrantReadWriteLock foodLock = new ReentrantReadWriteLock(true);
-    private static final ReentrantReadWriteLock requestLock = new ReentrantReadWriteLock(true);
+    // Fixed-size records and their strings, in place of food.txt and requests.txt in slots mode
+    private static final String FOOD_SLOTS_FILE = dataFile("food.slots");
+    private static final String FOOD_HEAP_FILE = dataFile("food.strings");
+    private static final String REQUEST_SLOTS_FILE = dataFile("requests.slots");
+    private static final String REQUEST_HEAP_FILE = dataFile("requests.strings");
+    
+    // -Dfds.persistence=journal (default) logs status changes to JOURNAL_FILE; "rewrite" rewrites the
+    // data files; "slots" keeps food and requests in memory-mapped slot files, changed in place
+    private static final String PERSISTENCE = System.getProperty("fds.persistence", "journal");
+    private static final boolean SLOTTED = "slots".equals(PERSISTENCE);
+    private static final boolean JOURNALED = !"rewrite".equals(PERSISTENCE) && !SLOTTED;
+    // Journal size, or bytes appended to the data files since the last snapshot, after which
+    // the journal is folded back into the data files and a new snapshot written
+    private static final long JOURNAL_COMPACT_BYTES = Long.getLong("fds.journal.compactBytes", 1L << 20);
+    // -Dfds.fsync=always (force every batch), interval (force every fds.fsync.intervalMs) or os
+    private static final FsyncPolicy FSYNC_POLICY =
+            FsyncPolicy.valueOf(System.getProperty("fds.fsync", "always").toUpperCase(Locale.ROOT));
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("fds.fsync.intervalMs", 10);
+    // Claimed or expired food and fulfilled or cancelled requests are archived this long after
+    // they close (default an hour); the archiver looks for them every fds.archive.intervalSeconds
+    private static final long ARCHIVE_AFTER_MS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("fds.archive.afterSeconds", 3600));
+    private static final long ARCHIVE_INTERVAL_SECONDS = Long.getLong("fds.archive.intervalSeconds", 300);
+    
+    // Side of a /api/food/nearby grid cell in degrees (0.01 is about 1.1 km north-south)
+    private static final double GEO_CELL_DEGREES =
+            Double.parseDouble(System.getProperty("fds.geo.cellDegrees", "0.01"));
+    private static final double MAX_NEARBY_RADIUS_KM = 100;
+    private static final int MAX_NEARBY_LIMIT = 1000;
+    // Items accepted by one call to a batch endpoint (add-batch, claim-batch)
+    private static final int MAX_BATCH_ITEMS = Integer.getInteger("fds.batch.maxItems", 1000);
+    // Distinct locations, food types or donors each /api/stats table tracks before lumping new
+    // ones together as "(other)"
+    private static final int STATS_MAX_KEYS = Integer.getInteger("fds.stats.maxKeys", 10_000);
+    
+    // -Dfds.replication.port makes this server a primary that streams every change to replicas
+    // connecting there (on fds.replication.host, loopback by default). -Dfds.replicaOf=host:port
+    // makes it a replica of that primary: it serves reads from its copy and forwards the rest.
+    private static final int REPLICATION_PORT = Integer.getInteger("fds.replication.port", -1);
+    private static final String REPLICATION_HOST = System.getProperty("fds.replication.host", "127.0.0.1");
+    private static final String REPLICA_OF = System.getProperty("fds.replicaOf");
+    // Lines queued per replica before a replica that can't keep up is cut off
+    private static final int REPLICATION_QUEUE = Integer.getInteger("fds.replication.queue", 100_000);
+    // Endpoints a replica answers itself; everything else goes to the primary
+    private static final List<String> REPLICA_PATHS = Arrays.asList("/api/food/list", "/api/food/nearby",
+            "/api/request/list", "/api/stats", "/api/metrics", "/");
+    
+    // Thread-safe data structures with locks. foodLock and requestLock are held shared by the
+    // handlers that change food/requests (records switch status by compare-and-set, so those
+    // handlers run in parallel) and exclusively by journal compaction. List handlers take none.
+    // userLock works the same way for registrations and password upgrades; logins take none.
+    private static final ReentrantReadWriteLock userLock = new TimedReadWriteLock("user", true);
+    private static final ReentrantReadWriteLock foodLock = new TimedReadWriteLock("food", true);
+    private static final ReentrantReadWriteLock requestLock = new TimedReadWriteLock("request", true);
+    
+    // Request counts, latencies and I/O counters reported by /api/metrics
+    private static final Metrics metrics = new Metrics();
+    
+    // -Dfds.executor=fixed (default) handles exchanges on fds.threads pooled threads; "virtual" runs
+    // each exchange on its own virtual thread where the JDK has them (21+) and falls back otherwise.
+    // All blocking below goes through java.util.concurrent locks and futures, never synchronized,
+    // so a virtual thread parked on a lock or on awaitDurable unmounts instead of pinning its carrier.
+    private static final String EXECUTOR_MODE = System.getProperty("fds.executor", "fixed").toLowerCase(Locale.ROOT);
+    private static final int THREADS = Integer.getInteger("fds.threads", 10);
     
     // Thread pool for handling concurrent requests
-    private static final ExecutorService executorService = Executors.newFixedThreadPool(10);
+    private static final ExecutorService executorService = createExecutor();
+    
+    // Concurrency limits in front of the handlers, one for reads (GET) and one for changes, that
+    // adapt to observed latency: a request over its limit, or one that already waited more than
+    // fds.admission.maxQueueMs for a thread or a lock, gets 503 with Retry-After straight away.
+    // -Dfds.admission=off disables it.
+    private static final AdmissionControl admission = new AdmissionControl(
+            !"off".equals(System.getProperty("fds.admission", "on")),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("fds.admission.maxQueueMs", 500)),
+            new AdmissionControl.Budget("read", Integer.getInteger("fds.admission.maxReads", 256),
+                    TimeUnit.MILLISECONDS.toNanos(Long.getLong("fds.admission.readTargetMs", 100))),
+            new AdmissionControl.Budget("write", Integer.getInteger("fds.admission.maxWrites", 64),
+                    TimeUnit.MILLISECONDS.toNanos(Long.getLong("fds.admission.writeTargetMs", 250))));
+    
+    // -Dfds.auth.threads password hashes run at once (default half the cores) with at most
+    // fds.auth.queue waiting, so a burst of logins can't take the CPU from every other request;
+    // logins beyond that get 503 straight away
+    private static final ExecutorService hashingPool = createHashingPool(
+            Integer.getInteger("fds.auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Integer.getInteger("fds.auth.queue", 64));
+    
+    // Bearer tokens issued by /api/login, valid for fds.session.ttlMinutes (default 12 hours).
+    // With -Dfds.auth.required=true, changes need a token; otherwise a request without one is
+    // trusted to name its own donator/receiver as before.
+    private static final SessionStore sessions =
+            new SessionStore(TimeUnit.MINUTES.toMillis(Long.getLong("fds.session.ttlMinutes", 720)));
+    private static final boolean AUTH_REQUIRED = Boolean.getBoolean("fds.auth.required");
+    
+    // Single writer thread that owns all data file handles and batches appends
+    private static final GroupCommitWriter writer = new GroupCommitWriter(FSYNC_POLICY, FSYNC_INTERVAL_MS);
+    
+    // Cold storage for closed records, read by /api/history
+    private static final Archive archive = new Archive(Paths.get(ARCHIVE_DIR));
+    
+    // In-memory copy of the data files, loaded once at startup and guarded by the locks above
+    private static final Repository repository = SLOTTED
+            ? new Repository(null, SlotStore.food(FOOD_SLOTS_FILE, FOOD_HEAP_FILE),
+                    SlotStore.requests(REQUEST_SLOTS_FILE, REQUEST_HEAP_FILE))
+            : new Repository(JOURNALED ? new Journal(JOURNAL_FILE) : null);
+    private static final ReplicationLog replication = REPLICATION_PORT >= 0
+            ? new ReplicationLog(REPLICATION_HOST, REPLICATION_PORT, REPLICATION_QUEUE) : null;
+    private static final Replica replica = REPLICA_OF != null ? new Replica(REPLICA_OF) : null;
+    
+    // Background thread that folds the journal into fresh snapshots
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    
+    // Checks for closed records old enough to archive and hands them to the compactor
+    private static final ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "archiver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Change feed for /api/events; heartbeats find clients that went away without closing
+    private static final EventBus events = new EventBus(Long.getLong("fds.events.heartbeatMs", 15_000));
+    
+    // -Dfds.matching=propose (default) announces each match as a "match" event; commit also
+    // claims the food for the receiver and fulfills the request; off disables matching
+    private static final MatchingEngine matcher = new MatchingEngine(
+            MatchingEngine.Mode.valueOf(System.getProperty("fds.matching", "propose").toUpperCase(Locale.ROOT)));
     
-    // Semaphore to limit concurrent file operations
-    private static final Semaphore fileSemaphore = new Semaphore(5, true);
+    // Marks perishable food "expired" once its expiresAt passes, off the request threads
+    private static final ExpiryScheduler expiry = new ExpiryScheduler();
+    
+    // Static files served from the working directory, kept in memory until they change on disk
+    private static final AssetCache assets = new AssetCache(Paths.get("."));
+    
+    // Serialized /api/food/list and /api/request/list pages, reused until the collection next
+    // changes: up to fds.listCache.entries queries each (0 turns caching off), for pages of at
+    // most fds.listCache.maxRecords records
+    private static final ListCache foodLists = new ListCache("food",
+            Integer.getInteger("fds.listCache.entries", 256), Integer.getInteger("fds.listCache.maxRecords", 1000));
+    private static final ListCache requestLists = new ListCache("request",
+            Integer.getInteger("fds.listCache.entries", 256), Integer.getInteger("fds.listCache.maxRecords", 1000));
     
     public static void main(String[] args) {
+        if (args.length > 0 && "migrate-slots".equals(args[0])) {
+            migrateToSlots();
+            return;
+        }
         try {
-            initializeFiles();
-            
             HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
-            server.setExecutor(executorService);
+            server.setExecutor(admission.timed(executorService));
+            if (replica != null) {
+                // A replica keeps no files and changes nothing itself, so the writer, matching,
+                // expiry and archiving all stay with the primary
+                System.out.println("Waiting for a copy of the data from primary " + REPLICA_OF);
+                replica.start(repository);
+                replica.awaitReady();
+            } else {
+                initializeFiles();
+                repository.load();
+                writer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(writer::close));
+                if (replication != null) {
+                    replication.start(repository, server.getAddress().getPort());
+                    System.out.println("Replication on " + REPLICATION_HOST + ":" + replication.port());
+                }
+                matcher.start();
+                expiry.start(repository.foods());
+                archiver.scheduleWithFixedDelay(FoodDonationServer::archiveIfDue,
+                        ARCHIVE_INTERVAL_SECONDS, ARCHIVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+            assets.start();
+            events.start();
             
             // API endpoints
-            server.createContext("/api/register", new RegisterHandler());
-            server.createContext("/api/login", new LoginHandler());
-            server.createContext("/api/food/add", new AddFoodHandler());
-            server.createContext("/api/food/list", new ListFoodHandler());
-            server.createContext("/api/food/claim", new ClaimFoodHandler());
-            server.createContext("/api/request/add", new AddRequestHandler());
-            server.createContext("/api/request/list", new ListRequestsHandler());
-            server.createContext("/api/request/cancel", new CancelRequestHandler());
-            server.createContext("/api/request/delete", new DeleteRequestHandler());
-            server.createContext("/api/request/fulfill", new FulfillRequestHandler());
-            server.createContext("/", new StaticFileHandler());
+            // Password hashing has its own bounded pool, and hash-bound latency would only drag
+            // the write budget down for everything else
+            route(server, "/api/register", new RegisterHandler(), false);
+            route(server, "/api/login", new LoginHandler(), false);
+            route(server, "/api/logout", new LogoutHandler());
+            route(server, "/api/food/add", new AddFoodHandler());
+            route(server, "/api/food/add-batch", new AddFoodBatchHandler());
+            route(server, "/api/food/list", new ListFoodHandler());
+            route(server, "/api/food/nearby", new NearbyFoodHandler());
+            route(server, "/api/food/claim", new ClaimFoodHandler());
+            route(server, "/api/food/claim-batch", new ClaimFoodBatchHandler());
+            route(server, "/api/request/add", new AddRequestHandler());
+            route(server, "/api/request/add-batch", new AddRequestBatchHandler());
+            route(server, "/api/request/list", new ListRequestsHandler());
+            route(server, "/api/request/cancel", new CancelRequestHandler());
+            route(server, "/api/request/delete", new DeleteRequestHandler());
+            route(server, "/api/request/fulfill", new FulfillRequestHandler());
+            route(server, "/api/history", new HistoryHandler());
+            route(server, "/api/stats", new StatsHandler());
+            // Event streams stay open for good and metrics must answer under overload, so neither
+            // takes a slot
+            route(server, "/api/events", new EventsHandler(), false);
+            route(server, "/api/metrics", new MetricsHandler(), false);
+            route(server, "/", new StaticFileHandler());
             
             server.start();
-            System.out.println("Server started on port " + PORT);
-            System.out.println("Open http://localhost:" + PORT + " in your browser");
+            int port = server.getAddress().getPort();
+            System.out.println("Server started on port " + port + " (" + describeExecutor() + ")");
+            System.out.println("Open http://localhost:" + port + " in your browser");
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // java FoodDonationServer migrate-slots: loads food and requests the way journal mode does
+    // (text files, snapshot and journal) and writes them to the slot files that
+    // -Dfds.persistence=slots reads. Existing slot files are never overwritten, and the text
+    // files are left as they are.
+    private static void migrateToSlots() {
+        List<String> files = Arrays.asList(FOOD_SLOTS_FILE, FOOD_HEAP_FILE, REQUEST_SLOTS_FILE, REQUEST_HEAP_FILE);
+        try {
+            for (String file : files) {
+                if (Files.exists(Paths.get(file))) {
+                    throw new IOException(file + " already exists; remove the slot files to migrate again");
+                }
+                // Left over from a migration that didn't finish
+                Files.deleteIfExists(Paths.get(file + ".tmp"));
+            }
+            initializeFiles();
+            Repository text = new Repository(new Journal(JOURNAL_FILE));
+            text.load();
+            writer.start();
+            copyToSlots(text, FOOD_SLOTS_FILE + ".tmp", FOOD_HEAP_FILE + ".tmp",
+                    REQUEST_SLOTS_FILE + ".tmp", REQUEST_HEAP_FILE + ".tmp");
+            writer.close();
+            for (String file : files) {
+                Files.move(Paths.get(file + ".tmp"), Paths.get(file), StandardCopyOption.ATOMIC_MOVE);
+            }
+            System.out.println("Migrated " + text.foods().size() + " food items and " + text.requests().size() +
+                    " requests to " + FOOD_SLOTS_FILE + " and " + REQUEST_SLOTS_FILE);
+        } catch (IOException e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Writes every food item and request of source into new slot files and waits until they are
+    // durable. Needs the writer running.
+    static void copyToSlots(Repository source, String foodFile, String foodHeap, String requestFile,
+            String requestHeap) throws IOException, InterruptedException {
+        SlotStore food = SlotStore.food(foodFile, foodHeap);
+        SlotStore requests = SlotStore.requests(requestFile, requestHeap);
+        food.open((slot, status, fields) -> { });
+        requests.open((slot, status, fields) -> { });
+        for (FoodItem item : source.foods()) {
+            food.add(item.status, item.toSlot(food));
+        }
+        for (DonationRequest request : source.requests()) {
+            requests.add(request.status, request.toSlot(requests));
+        }
+        awaitDurable(CompletableFuture.allOf(food.force(), requests.force()));
+    }
+    
+    // Every context is wrapped so /api/metrics sees its request counts, status codes and latency,
+    // including the requests admission control turns away
+    private static void route(HttpServer server, String path, HttpHandler handler) {
+        route(server, path, handler, true);
+    }
+    
+    private static void route(HttpServer server, String path, HttpHandler handler, boolean admitted) {
+        if (replica != null && !REPLICA_PATHS.contains(path)) {
+            handler = new ForwardingHandler(replica);
+        }
+        server.createContext(path, new InstrumentedHandler(metrics.context(path),
+                admitted ? admission.guard(handler) : handler));
+    }
+    
+    private static ExecutorService createExecutor() {
+        if ("virtual".equals(EXECUTOR_MODE)) {
+            try {
+                // Looked up reflectively so the server still builds and runs on JDK 11-20
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable on Java " + Runtime.version().feature()
+                        + ", falling back to " + THREADS + " pooled threads");
+            }
+        } else if (!"fixed".equals(EXECUTOR_MODE)) {
+            throw new IllegalArgumentException("fds.executor must be fixed or virtual: " + EXECUTOR_MODE);
         }
+        return Executors.newFixedThreadPool(THREADS);
+    }
+    
+    private static String describeExecutor() {
+        return executorService instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executorService).getMaximumPoolSize() + " pooled threads"
+                : "virtual thread per exchange";
+    }
+    
+    private static ExecutorService createHashingPool(int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+    
+    private static String dataFile(String name) {
+        return DATA_DIR == null ? name : Paths.get(DATA_DIR, name).toString();
     }
     
     private static void initializeFiles() {
@@ -59,6 +355,7 @@ public class FoodDonationServer {
                     Files.createFile(Paths.get(file));
                 }
             }
+            Files.createDirectories(Paths.get(ARCHIVE_DIR));
         } catch (IOException e) {
             System.err.println("Error initializing files: " + e.getMessage());
         }
@@ -71,10 +368,10 @@ public class FoodDonationServer {
         boolean userAcquired = false;
         boolean foodAcquired = false;
         try {
-            userAcquired = userLock.writeLock().tryLock(5, TimeUnit.SECONDS);
+            userAcquired = userLock.writeLock().tryLock(admission.maxQueueNanos, TimeUnit.NANOSECONDS);
             if (!userAcquired) throw new RuntimeException("Timeout acquiring user lock");
             
-            foodAcquired = foodLock.writeLock().tryLock(5, TimeUnit.SECONDS);
+            foodAcquired = foodLock.writeLock().tryLock(admission.maxQueueNanos, TimeUnit.NANOSECONDS);
             if (!foodAcquired) throw new RuntimeException("Timeout acquiring food lock");
             
             operation.run();
@@ -87,599 +384,5927 @@ public class FoodDonationServer {
         }
     }
     
-    static class RegisterHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
-                return;
-            }
-            
+    private static void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(FoodDonationServer::compactJournal);
+        }
+    }
+    
+    private static void archiveIfDue() {
+        if (repository.archiveDue(System.currentTimeMillis() - ARCHIVE_AFTER_MS)) {
+            scheduleCompaction();
+        }
+    }
+    
+    // Rewrites food.txt and requests.txt from memory, less the records it archives, and empties
+    // the journal. Takes all three write locks (user -> food -> request order) so no change can
+    // land between snapshot and truncate; the writer thread then applies the snapshot ahead of
+    // anything queued after it. If the archive or the files fail to reach disk, the archived
+    // records go back into memory for the next run.
+    private static void compactJournal() {
+        List<FoodItem> foodArchived = new ArrayList<>();
+        List<DonationRequest> requestsArchived = new ArrayList<>();
+        try {
+            CompletableFuture<Void> done = underAllWriteLocks(() -> repository.compact(
+                    System.currentTimeMillis() - ARCHIVE_AFTER_MS, foodArchived, requestsArchived));
+            awaitDurable(done);
+        } catch (IOException e) {
+            System.err.println("Journal compaction failed: " + e.getMessage());
+            underAllWriteLocks(() -> {
+                repository.restoreArchived(foodArchived, requestsArchived);
+                return null;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            compactionScheduled.set(false);
+        }
+    }
+    
+    private static <T> T underAllWriteLocks(Supplier<T> task) {
+        userLock.writeLock().lock();
+        try {
+            foodLock.writeLock().lock();
             try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String username = params.get("username");
-                String password = params.get("password");
-                String type = params.get("type");
-                
-                if (username == null || password == null || type == null) {
-                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
-                    return;
-                }
-                
-                // Acquire write lock with timeout to prevent deadlock
-                if (!userLock.writeLock().tryLock(5, TimeUnit.SECONDS)) {
-                    sendResponse(exchange, 503, "{\"error\":\"Server busy, try again\"}");
-                    return;
-                }
-                
+                requestLock.writeLock().lock();
                 try {
-                    // Acquire semaphore for file access
-                    fileSemaphore.acquire();
-                    
-                    try {
-                        List<String> users = Files.readAllLines(Paths.get(USERS_FILE));
-                        
-                        // Check if user exists
-                        for (String user : users) {
-                            String[] parts = user.split("\\|");
-                            if (parts[0].equals(username)) {
-                                sendResponse(exchange, 400, "{\"error\":\"Username already exists\"}");
-                                return;
-                            }
-                        }
-                        
-                        // Add new user
-                        String userRecord = username + "|" + password + "|" + type + "\n";
-                        Files.write(Paths.get(USERS_FILE), userRecord.getBytes(), 
-                                StandardOpenOption.APPEND);
-                        
-                        sendResponse(exchange, 200, "{\"success\":true,\"username\":\"" + username + "\"}");
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                    return task.get();
                 } finally {
-                    userLock.writeLock().unlock();
+                    requestLock.writeLock().unlock();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            } finally {
+                foodLock.writeLock().unlock();
             }
+        } finally {
+            userLock.writeLock().unlock();
         }
     }
     
-    static class LoginHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
-                return;
+    // Runs a password hash or check on hashingPool and waits for it. Throws
+    // RejectedExecutionException when the pool's queue is full.
+    private static <T> T hashing(Callable<T> task) throws IOException, InterruptedException {
+        try {
+            return hashingPool.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    /**
+     * The user a change is made by. With an "Authorization: Bearer" token that is the session's
+     * user, and party (the donator/receiver named in the body) must be absent or the same user.
+     * Without one it is party itself, unless fds.auth.required is set.
+     */
+    private static String actAs(HttpExchange exchange, String party) throws AuthException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null) {
+            if (AUTH_REQUIRED) throw new AuthException(401, "Login required");
+            return party;
+        }
+        SessionStore.Session session = header.regionMatches(true, 0, "Bearer ", 0, 7)
+                ? sessions.find(header.substring(7).trim()) : null;
+        if (session == null) throw new AuthException(401, "Invalid or expired session");
+        if (party != null && !party.equals(session.username)) {
+            throw new AuthException(403, "Cannot act for another user");
+        }
+        return session.username;
+    }
+    
+    static class AuthException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        final int status;
+        
+        AuthException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+    
+    private static void sendAuthError(HttpExchange exchange, AuthException e) throws IOException {
+        if (e.status == 401) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+        }
+        sendResponse(exchange, e.status, "{\"error\":\"" + e.getMessage() + "\"}");
+    }
+    
+    // Blocks until the writer thread has made a queued write durable under FSYNC_POLICY
+    private static void awaitDurable(CompletableFuture<Void> durable) 
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            durable.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            metrics.durableWait.record(System.nanoTime() - start);
+        }
+    }
+    
+    // Records mirror one line of users.txt, food.txt and requests.txt respectively
+    static class User {
+        final String username;
+        final String password;
+        final String type;
+        
+        User(String username, String password, String type) {
+            this.username = username;
+            this.password = password;
+            this.type = type;
+        }
+        
+        static User parse(String line) {
+            String[] parts = line.split("\\|");
+            if (parts.length < 3) return null;
+            return new User(parts[0], parts[1], parts[2]);
+        }
+        
+        String toRecord() {
+            return username + "|" + password + "|" + type;
+        }
+    }
+    
+    /**
+     * Salted PBKDF2-HMAC-SHA256 password hashes, stored in the password column of users.txt as
+     * pbkdf2$iterations$salt$hash (base64). Records from before hashing hold the plaintext; they
+     * still verify, and LoginHandler replaces them with a hash on the user's next login.
+     */
+    static class Passwords {
+        private static final String PREFIX = "pbkdf2$";
+        // -Dfds.auth.iterations; only affects new hashes, stored ones keep their own count
+        private static final int ITERATIONS = Integer.getInteger("fds.auth.iterations", 310_000);
+        private static final SecureRandom random = new SecureRandom();
+        // Checked against when the username is unknown, so a miss costs as long as a wrong password
+        private static final String UNKNOWN_USER = hash("");
+        
+        static String hash(String password) {
+            byte[] salt = new byte[16];
+            random.nextBytes(salt);
+            Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+            return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$" +
+                    base64.encodeToString(derive(password, salt, ITERATIONS));
+        }
+        
+        static boolean isHashed(String stored) {
+            return stored.startsWith(PREFIX);
+        }
+        
+        // stored == null (no such user) always fails, after the same amount of work
+        static boolean verify(String password, String stored) {
+            if (stored == null) {
+                verify(password, UNKNOWN_USER);
+                return false;
             }
-            
+            if (!isHashed(stored)) {
+                return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                        stored.getBytes(StandardCharsets.UTF_8));
+            }
+            String[] parts = stored.split("\\$");
+            if (parts.length != 4) return false;
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, derive(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        }
+        
+        private static byte[] derive(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
             try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String username = params.get("username");
-                String password = params.get("password");
-                
-                // Use read lock for concurrent reads
-                userLock.readLock().lock();
-                try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> users = Files.readAllLines(Paths.get(USERS_FILE));
-                        
-                        for (String user : users) {
-                            String[] parts = user.split("\\|");
-                            if (parts[0].equals(username) && parts[1].equals(password)) {
-                                String response = "{\"success\":true,\"username\":\"" + username + 
-                                                "\",\"type\":\"" + parts[2] + "\"}";
-                                sendResponse(exchange, 200, response);
-                                return;
-                            }
-                        }
-                        
-                        sendResponse(exchange, 401, "{\"error\":\"Invalid credentials\"}");
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    userLock.readLock().unlock();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 unavailable", e);
+            } finally {
+                spec.clearPassword();
             }
         }
     }
     
-    static class AddFoodHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
-                return;
-            }
+    /**
+     * Opaque login tokens: 256 random bits, looked up with a single hash-map get. Sessions live in
+     * memory only, so a restart logs everyone out. Expired ones are dropped when next presented
+     * and swept every 1024 logins.
+     */
+    static class SessionStore {
+        static class Session {
+            final String token;
+            final String username;
+            final String type;
+            final long expiresAt;
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String donator = params.get("donator");
-                String name = params.get("name");
-                String quantity = params.get("quantity");
-                String location = params.get("location");
-                
-                foodLock.writeLock().lock();
-                try {
-                    fileSemaphore.acquire();
-                    try {
-                        String id = UUID.randomUUID().toString().substring(0, 8);
-                        String foodRecord = id + "|" + donator + "|" + name + "|" + 
-                                        quantity + "|" + location + "|available\n";
-                        
-                        Files.write(Paths.get(FOOD_FILE), foodRecord.getBytes(), 
-                                StandardOpenOption.APPEND);
-                        
-                        sendResponse(exchange, 200, "{\"success\":true,\"id\":\"" + id + "\"}");
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    foodLock.writeLock().unlock();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            Session(String token, String username, String type, long expiresAt) {
+                this.token = token;
+                this.username = username;
+                this.type = type;
+                this.expiresAt = expiresAt;
+            }
+        }
+        
+        private final Map<String, Session> byToken = new ConcurrentHashMap<>();
+        private final SecureRandom random = new SecureRandom();
+        private final AtomicInteger issued = new AtomicInteger();
+        private final long ttlMillis;
+        
+        SessionStore(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+        
+        Session create(User user) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            Session session = new Session(token, user.username, user.type, System.currentTimeMillis() + ttlMillis);
+            byToken.put(token, session);
+            if ((issued.incrementAndGet() & 1023) == 0) {
+                long now = System.currentTimeMillis();
+                byToken.values().removeIf(s -> s.expiresAt <= now);
             }
+            return session;
+        }
+        
+        Session find(String token) {
+            Session session = byToken.get(token);
+            if (session == null) return null;
+            if (session.expiresAt <= System.currentTimeMillis()) {
+                byToken.remove(token, session);
+                return null;
+            }
+            return session;
+        }
+        
+        void revoke(String token) {
+            byToken.remove(token);
+        }
+        
+        int size() {
+            return byToken.size();
         }
     }
     
-    static class ListFoodHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            try {
-                foodLock.readLock().lock();
+    static class FoodItem {
+        private static final AtomicReferenceFieldUpdater<FoodItem, String> STATUS =
+                AtomicReferenceFieldUpdater.newUpdater(FoodItem.class, String.class, "status");
+        
+        final String id;
+        final String donator;
+        final String name;
+        final String quantity;
+        final String location;
+        // Pickup coordinates in degrees, NaN when the donator gave none
+        final double lat;
+        final double lon;
+        // When the food stops being safe to hand out, in epoch millis; 0 if it doesn't perish
+        final long expiresAt;
+        volatile String status;
+        volatile String receiver;
+        // Insertion order, assigned by the repository; list endpoints return items in this order
+        long seq;
+        // When the item was claimed or expired, 0 while available. Kept in memory only, so
+        // items read from disk count as closing at startup.
+        volatile long closedAt;
+        // Where the item lives in the slot file, -1 unless -Dfds.persistence=slots
+        int slot = -1;
+        // When the item was added, for the claim latency in /api/stats. Kept in memory only, 0
+        // for items read from disk.
+        long addedAt;
+        
+        FoodItem(String id, String donator, String name, String quantity, String location,
+                String status, String receiver) {
+            this(id, donator, name, quantity, location, Double.NaN, Double.NaN, 0, status, receiver);
+        }
+        
+        FoodItem(String id, String donator, String name, String quantity, String location,
+                double lat, double lon, long expiresAt, String status, String receiver) {
+            this.id = id;
+            this.donator = donator;
+            this.name = name;
+            this.quantity = quantity;
+            this.location = location;
+            this.lat = lat;
+            this.lon = lon;
+            this.expiresAt = expiresAt;
+            this.status = status;
+            this.receiver = receiver;
+        }
+        
+        // id|donator|name|quantity|location|status[|receiver[|lat|lon[|expiresAt]]]; receiver,
+        // lat and lon are empty when absent
+        static FoodItem parse(String line) {
+            String[] parts = line.split("\\|");
+            if (parts.length < 6) return null;
+            String receiver = parts.length > 6 && !parts[6].isEmpty() ? parts[6] : null;
+            double lat = Double.NaN;
+            double lon = Double.NaN;
+            if (parts.length > 8 && !parts[7].isEmpty()) {
                 try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> foods = Files.readAllLines(Paths.get(FOOD_FILE));
-                        StringBuilder json = new StringBuilder("[");
-                        
-                        for (int i = 0; i < foods.size(); i++) {
-                            String[] parts = foods.get(i).split("\\|");
-                            if (parts.length >= 6 && "available".equals(parts[5])) {
-                                json.append("{\"id\":\"").append(parts[0])
-                                    .append("\",\"donator\":\"").append(parts[1])
-                                    .append("\",\"name\":\"").append(parts[2])
-                                    .append("\",\"quantity\":\"").append(parts[3])
-                                    .append("\",\"location\":\"").append(parts[4])
-                                    .append("\"}");
-                                if (i < foods.size() - 1) json.append(",");
-                            }
-                        }
-                        
-                        json.append("]");
-                        sendResponse(exchange, 200, json.toString().replace(",]", "]"));
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    foodLock.readLock().unlock();
+                    lat = Double.parseDouble(parts[7]);
+                    lon = Double.parseDouble(parts[8]);
+                } catch (NumberFormatException e) {
+                    lat = lon = Double.NaN;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
             }
+            long expiresAt = 0;
+            if (parts.length > 9) {
+                try {
+                    expiresAt = Long.parseLong(parts[9]);
+                } catch (NumberFormatException e) {
+                    expiresAt = 0;
+                }
+            }
+            return new FoodItem(parts[0], parts[1], parts[2], parts[3], parts[4], lat, lon, expiresAt,
+                    parts[5], receiver);
+        }
+        
+        boolean hasLocation() {
+            return !Double.isNaN(lat);
+        }
+        
+        boolean perishable() {
+            return expiresAt > 0;
+        }
+        
+        boolean expiredBy(long now) {
+            return expiresAt > 0 && expiresAt <= now;
+        }
+        
+        static boolean validLocation(double lat, double lon) {
+            return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+        }
+        
+        // Moves the item from one status to another and returns the status it left, or null if
+        // it was not in "from". Statuses only move forward (apart from the matching engine
+        // handing back a claim it could not complete), so when several callers race on the same
+        // item exactly one compare-and-set succeeds.
+        String transition(String from, String to, String party) {
+            String current = status;
+            if (!from.equals(current) || !STATUS.compareAndSet(this, current, to)) return null;
+            receiver = party;
+            return current;
+        }
+        
+        String toRecord() {
+            String record = id + "|" + donator + "|" + name + "|" + quantity + "|" + location + "|" + status;
+            String receiver = this.receiver;
+            if (perishable()) {
+                return record + "|" + (receiver != null ? receiver : "") + "|" +
+                        (hasLocation() ? lat + "|" + lon : "|") + "|" + expiresAt;
+            }
+            if (hasLocation()) {
+                return record + "|" + (receiver != null ? receiver : "") + "|" + lat + "|" + lon;
+            }
+            return receiver != null ? record + "|" + receiver : record;
+        }
+        
+        // Slot fields: id, donator, name, quantity, location and receiver as strings, then
+        // lat, lon and expiresAt
+        static final int SLOT_FIELDS = 9;
+        static final int SLOT_STRINGS = 6;
+        static final int SLOT_RECEIVER = 5;
+        
+        long[] toSlot(SlotStore store) {
+            return new long[] {store.uniqueRef(id), store.ref(donator), store.ref(name), store.ref(quantity),
+                    store.ref(location), store.ref(receiver), Double.doubleToRawLongBits(lat),
+                    Double.doubleToRawLongBits(lon), expiresAt};
+        }
+        
+        static FoodItem fromSlot(String status, SlotStore.Slot slot) {
+            return new FoodItem(slot.uniqueString(0), slot.string(1), slot.string(2), slot.string(3),
+                    slot.string(4), slot.decimal(6), slot.decimal(7), slot.value(8), status, slot.string(5));
         }
     }
     
-    static class ClaimFoodHandler implements HttpHandler {
-        @Override
+    static class DonationRequest {
+        private static final AtomicReferenceFieldUpdater<DonationRequest, String> STATUS =
+                AtomicReferenceFieldUpdater.newUpdater(DonationRequest.class, String.class, "status");
+        
+        final String id;
+        final String receiver;
+        final String foodType;
+        final String quantity;
+        volatile String status;
+        volatile String donor;
+        long seq;
+        // When the request was fulfilled or cancelled, 0 while pending; as for FoodItem
+        volatile long closedAt;
+        int slot = -1;
+        
+        DonationRequest(String id, String receiver, String foodType, String quantity,
+                String status, String donor) {
+            this.id = id;
+            this.receiver = receiver;
+            this.foodType = foodType;
+            this.quantity = quantity;
+            this.status = status;
+            this.donor = donor;
+        }
+        
+        static DonationRequest parse(String line) {
+            String[] parts = line.split("\\|");
+            if (parts.length < 5) return null;
+            return new DonationRequest(parts[0], parts[1], parts[2], parts[3], parts[4],
+                    parts.length > 5 ? parts[5] : null);
+        }
+        
+        // Same compare-and-set rule as FoodItem.transition; a null "from" accepts any live status
+        String transition(String from, String to, String party) {
+            String current = status;
+            if ("deleted".equals(current) || (from != null && !from.equals(current)) ||
+                    !STATUS.compareAndSet(this, current, to)) {
+                return null;
+            }
+            if (party != null) donor = party;
+            return current;
+        }
+        
+        String toRecord() {
+            return id + "|" + receiver + "|" + foodType + "|" + quantity + "|" + status +
+                    (donor != null ? "|" + donor : "");
+        }
+        
+        // Slot fields: id, receiver, foodType, quantity and donor, all strings
+        static final int SLOT_FIELDS = 5;
+        static final int SLOT_DONOR = 4;
+        
+        long[] toSlot(SlotStore store) {
+            return new long[] {store.uniqueRef(id), store.ref(receiver), store.ref(foodType), store.ref(quantity),
+                    store.ref(donor)};
+        }
+        
+        static DonationRequest fromSlot(String status, SlotStore.Slot slot) {
+            return new DonationRequest(slot.uniqueString(0), slot.string(1), slot.string(2), slot.string(3),
+                    status, slot.string(4));
+        }
+    }
+    
+    /**
+     * Keeps users, food and requests in memory, keyed by username / id so lookups are O(1).
+     * The files are parsed once in load(); afterwards new records are appended and status
+     * changes are written back from memory, so no request ever re-reads or re-parses a file.
+     * All maps are concurrent, so reads need no lock and records change status through their
+     * own compare-and-set. Mutators hand their bytes to the writer thread and return its
+     * future, which callers should wait on after releasing their lock.
+     */
+    static class Repository {
+        private static final List<String> CLOSED_FOOD = Arrays.asList("claimed", "expired");
+        private static final List<String> CLOSED_REQUESTS = Arrays.asList("fulfilled", "cancelled");
+        
+        private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+        private final Map<String, FoodItem> foodById = new ConcurrentHashMap<>();
+        private final ConcurrentNavigableMap<Long, FoodItem> foodBySeq = new ConcurrentSkipListMap<>();
+        private final Map<String, DonationRequest> requestsById = new ConcurrentHashMap<>();
+        private final ConcurrentNavigableMap<Long, DonationRequest> requestsBySeq = new ConcurrentSkipListMap<>();
+        // Secondary indexes behind the list filters, so a page costs O(page) rather than O(records)
+        private final SeqIndex<FoodItem> foodByStatus = new SeqIndex<>();
+        private final SeqIndex<FoodItem> foodByDonator = new SeqIndex<>();
+        private final SeqIndex<FoodItem> foodByReceiver = new SeqIndex<>();
+        private final SeqIndex<DonationRequest> requestsByStatus = new SeqIndex<>();
+        private final SeqIndex<DonationRequest> requestsByReceiver = new SeqIndex<>();
+        private final SeqIndex<DonationRequest> requestsByDonor = new SeqIndex<>();
+        // Only available food and pending requests, by kind(), for the matching engine
+        private final SeqIndex<FoodItem> availableFoodByKind = new SeqIndex<>();
+        private final SeqIndex<DonationRequest> pendingRequestsByKind = new SeqIndex<>();
+        // Available food that has coordinates, for /api/food/nearby
+        private final GeoGrid availableFoodByCell = new GeoGrid(GEO_CELL_DEGREES);
+        // Totals for /api/stats, kept along with the indexes
+        final Stats stats = new Stats();
+        // Where changes are published for replicas; null unless this is a primary
+        private volatile ReplicationLog replication;
+        private final AtomicLong sequence = new AtomicLong();
+        // Bumped after every change to a collection's records or indexes, so a list page built
+        // at one version holds everything up to it (see ListCache)
+        private final AtomicLong foodVersion = new AtomicLong();
+        private final AtomicLong requestVersion = new AtomicLong();
+        // users.txt lines superseded by an upgraded record appended later
+        private final AtomicInteger supersededUsers = new AtomicInteger();
+        // Bytes appended to the data files since the snapshot, which startup parses as text
+        private final AtomicLong tailBytes = new AtomicLong();
+        // How long load() took and whether it started from the snapshot
+        volatile long loadMillis;
+        volatile boolean loadedSnapshot;
+        private final Journal journal;
+        // Food and requests in place of food.txt and requests.txt; null unless slots mode
+        final SlotStore foodSlots;
+        final SlotStore requestSlots;
+        // In rewrite mode, keeps snapshot order equal to queue order so a later file never
+        // misses a change that an earlier one had
+        private final ReentrantLock snapshotLock = new ReentrantLock();
+        
+        // A null journal means every status change rewrites the whole data file
+        Repository(Journal journal) {
+            this(journal, null, null);
+        }
+        
+        // With slot stores, food and requests are kept in them and changed in place; users
+        // stay in users.txt as in rewrite mode
+        Repository(Journal journal, SlotStore foodSlots, SlotStore requestSlots) {
+            this.journal = journal;
+            this.foodSlots = foodSlots;
+            this.requestSlots = requestSlots;
+        }
+        
+        // Starts from the snapshot when it matches the data files, so only what was appended
+        // since (and the journal) is parsed as text; otherwise parses the files in full
+        void load() throws IOException {
+            long start = System.nanoTime();
+            for (String file : Arrays.asList(USERS_FILE, FOOD_FILE, REQUESTS_FILE)) {
+                terminateLastLine(file);
+            }
+            Snapshot snapshot = journal != null ? Snapshot.open(SNAPSHOT_FILE) : null;
+            if (snapshot != null) {
+                snapshot.load(user -> usersByName.put(user.username, user), this::index, this::index);
+            }
+            int tail = 0;
+            for (String line : readLines(USERS_FILE, snapshot != null ? snapshot.usersLength : 0)) {
+                User user = User.parse(line);
+                if (user != null) usersByName.put(user.username, user);
+                tail++;
+            }
+            if (foodSlots != null) {
+                foodSlots.open((slot, status, fields) -> {
+                    FoodItem food = FoodItem.fromSlot(status, fields);
+                    food.slot = slot;
+                    index(food);
+                });
+                requestSlots.open((slot, status, fields) -> {
+                    DonationRequest request = DonationRequest.fromSlot(status, fields);
+                    request.slot = slot;
+                    index(request);
+                });
+            } else {
+                for (String line : readLines(FOOD_FILE, snapshot != null ? snapshot.foodLength : 0)) {
+                    FoodItem food = FoodItem.parse(line);
+                    if (food != null) index(food);
+                    tail++;
+                }
+                for (String line : readLines(REQUESTS_FILE, snapshot != null ? snapshot.requestsLength : 0)) {
+                    DonationRequest request = DonationRequest.parse(line);
+                    if (request != null) index(request);
+                    tail++;
+                }
+            }
+            int replayed = 0;
+            if (journal != null) {
+                for (String entry : journal.open()) {
+                    if (apply(entry)) replayed++;
+                }
+                // Text the next startup would parse again; past JOURNAL_COMPACT_BYTES the next
+                // append schedules a compaction, which writes a fresh snapshot
+                tailBytes.set(Files.size(Paths.get(USERS_FILE)) + Files.size(Paths.get(FOOD_FILE)) +
+                        Files.size(Paths.get(REQUESTS_FILE)) - (snapshot == null ? 0
+                        : snapshot.usersLength + snapshot.foodLength + snapshot.requestsLength));
+            }
+            loadedSnapshot = snapshot != null;
+            loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("Loaded " + usersByName.size() + " users, " + foodById.size() +
+                    " food items, " + requestsById.size() + " requests" +
+                    (foodSlots != null ? "" : " (" + replayed + " journal entries replayed)") +
+                    " in " + loadMillis + " ms" +
+                    (snapshot != null ? " from the snapshot and " + tail + " newer lines" : "") +
+                    (foodSlots != null ? " from the slot files" : ""));
+        }
+        
+        // The file's lines from a byte offset on
+        private static List<String> readLines(String file, long offset) throws IOException {
+            List<String> lines = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                metrics.read(file, channel.size() - offset);
+                channel.position(offset);
+                BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            return lines;
+        }
+        
+        // Replays one journal entry: food|id|status[|receiver] or request|id|status[|donor]
+        private boolean apply(String entry) {
+            String[] parts = entry.split("\\|");
+            if (parts.length < 3) return false;
+            String party = parts.length > 3 ? parts[3] : null;
+            if ("food".equals(parts[0])) {
+                FoodItem food = foodById.get(parts[1]);
+                if (food == null) return false;
+                String previous = food.status;
+                food.status = parts[2];
+                food.receiver = party;
+                reindex(food, previous);
+                return true;
+            }
+            if ("request".equals(parts[0])) {
+                DonationRequest request = requestsById.get(parts[1]);
+                if (request == null) return false;
+                String previous = request.status;
+                request.status = parts[2];
+                if ("deleted".equals(parts[2])) {
+                    unindex(request, previous);
+                } else {
+                    request.donor = party;
+                    reindex(request, previous);
+                }
+                return true;
+            }
+            return false;
+        }
+        
+        User findUser(String username) {
+            return username == null ? null : usersByName.get(username);
+        }
+        
+        // Returns null if the username is taken. Callers hold userLock shared, so a users.txt
+        // rewrite (which holds it exclusively) can't miss the new record.
+        CompletableFuture<Void> addUser(User user) {
+            if (usersByName.putIfAbsent(user.username, user) != null) return null;
+            return append(USERS_FILE, user.toRecord());
+        }
+        
+        // Swaps a plaintext record for its hashed form; null if it was already replaced. The new
+        // line is appended (the last line for a name wins at load) and the old one is dropped
+        // the next time users.txt is rewritten, which compact() does once enough have piled up.
+        CompletableFuture<Void> upgradeUser(User legacy, User upgraded) {
+            if (!usersByName.replace(legacy.username, legacy, upgraded)) return null;
+            supersededUsers.incrementAndGet();
+            return append(USERS_FILE, upgraded.toRecord());
+        }
+        
+        // A sixteenth of users.txt is dead lines; the first is enough on a small file
+        boolean usersNeedRewrite() {
+            return supersededUsers.get() * 16L >= usersByName.size();
+        }
+        
+        FoodItem findFood(String id) {
+            return id == null ? null : foodById.get(id);
+        }
+        
+        Collection<FoodItem> foods() {
+            return foodBySeq.values();
+        }
+        
+        // Available items first filtered by donator/receiver if given, else by status; the
+        // remaining filters are checked per record. Records after the "after" cursor only.
+        List<FoodItem> findFoods(String status, String donator, String receiver, long after, int limit) {
+            NavigableMap<Long, FoodItem> index = donator != null ? foodByDonator.get(donator)
+                    : receiver != null ? foodByReceiver.get(receiver)
+                    : status != null ? foodByStatus.get(status)
+                    : foodBySeq;
+            return page(index, after, limit, food ->
+                    (status == null || status.equals(food.status)) &&
+                    (donator == null || donator.equals(food.donator)) &&
+                    (receiver == null || receiver.equals(food.receiver)));
+        }
+        
+        private void index(FoodItem food) {
+            index(food, sequence.incrementAndGet());
+        }
+        
+        private void index(FoodItem food, long seq) {
+            food.seq = seq;
+            foodById.put(food.id, food);
+            foodBySeq.put(food.seq, food);
+            foodByStatus.add(food.status, food.seq, food);
+            foodByDonator.add(food.donator, food.seq, food);
+            foodByReceiver.add(food.receiver, food.seq, food);
+            if ("available".equals(food.status)) {
+                availableFoodByKind.add(kind(food.name), food.seq, food);
+                availableFoodByCell.add(food);
+            }
+            food.closedAt = closed(food) ? System.currentTimeMillis() : 0;
+            stats.indexed(food);
+            foodVersion.incrementAndGet();
+            if (replication != null) replication.food(food);
+        }
+        
+        // Adds under the new status before dropping the old one, so a filtered list never
+        // misses the item mid-move (readers re-check the status anyway)
+        private void reindex(FoodItem food, String previousStatus) {
+            foodByStatus.add(food.status, food.seq, food);
+            foodByStatus.remove(previousStatus, food.seq);
+            foodByReceiver.add(food.receiver, food.seq, food);
+            if ("available".equals(food.status)) {
+                availableFoodByKind.add(kind(food.name), food.seq, food);
+                availableFoodByCell.add(food);
+            }
+            if ("available".equals(previousStatus)) {
+                availableFoodByKind.remove(kind(food.name), food.seq);
+                availableFoodByCell.remove(food);
+            }
+            food.closedAt = closed(food) ? System.currentTimeMillis() : 0;
+            stats.moved(food, previousStatus);
+            foodVersion.incrementAndGet();
+            if (replication != null) replication.food(food);
+        }
+        
+        long foodVersion() {
+            return foodVersion.get();
+        }
+        
+        long requestVersion() {
+            return requestVersion.get();
+        }
+        
+        // Closed records stay listed until the archiver moves them out
+        static boolean closed(FoodItem food) {
+            return CLOSED_FOOD.contains(food.status);
+        }
+        
+        static boolean closed(DonationRequest request) {
+            return CLOSED_REQUESTS.contains(request.status);
+        }
+        
+        private void unindex(FoodItem food) {
+            foodById.remove(food.id);
+            foodBySeq.remove(food.seq);
+            foodByStatus.remove(food.status, food.seq);
+            foodByDonator.remove(food.donator, food.seq);
+            foodByReceiver.remove(food.receiver, food.seq);
+            stats.removed(food);
+            foodVersion.incrementAndGet();
+            if (replication != null) replication.removeFood(food);
+        }
+        
+        List<GeoGrid.Nearby> nearbyFood(double lat, double lon, double radiusKm, int limit) {
+            return availableFoodByCell.nearest(lat, lon, radiusKm, limit);
+        }
+        
+        // What the matching engine pairs on: a food item's name or a request's foodType,
+        // ignoring case and surrounding spaces
+        static String kind(String name) {
+            return name == null ? null : name.trim().toLowerCase(Locale.ROOT);
+        }
+        
+        // Oldest first; entries may briefly lag a status change, so callers re-check the status
+        Collection<FoodItem> availableFood(String kind) {
+            return kind == null ? Collections.emptyList() : availableFoodByKind.get(kind).values();
+        }
+        
+        Collection<DonationRequest> pendingRequests(String kind) {
+            return kind == null ? Collections.emptyList() : pendingRequestsByKind.get(kind).values();
+        }
+        
+        CompletableFuture<Void> addFood(FoodItem food) {
+            food.addedAt = System.currentTimeMillis();
+            if (foodSlots != null) {
+                food.slot = foodSlots.add(food.status, food.toSlot(foodSlots));
+                index(food);
+                return foodSlots.force();
+            }
+            index(food);
+            return append(FOOD_FILE, food.toRecord());
+        }
+        
+        // Adds all the items with a single append to food.txt, or a single force of the slots
+        CompletableFuture<Void> addFoods(List<FoodItem> foods) {
+            long now = System.currentTimeMillis();
+            for (FoodItem food : foods) {
+                food.addedAt = now;
+            }
+            if (foodSlots != null) {
+                for (FoodItem food : foods) {
+                    food.slot = foodSlots.add(food.status, food.toSlot(foodSlots));
+                    index(food);
+                }
+                return foodSlots.force();
+            }
+            StringBuilder records = new StringBuilder();
+            for (FoodItem food : foods) {
+                index(food);
+                if (records.length() > 0) records.append('\n');
+                records.append(food.toRecord());
+            }
+            return append(FOOD_FILE, records.toString());
+        }
+        
+        // Returns null if the item was not in the "from" status, e.g. someone else claimed it first
+        CompletableFuture<Void> transitionFood(FoodItem food, String from, String to, String party) {
+            String previous = food.transition(from, to, party);
+            if (previous == null) return null;
+            reindex(food, previous);
+            return persist(Collections.singletonList(food));
+        }
+        
+        // transitionFood for each item (null items are skipped), with parties.get(i) as the party
+        // for foods.get(i). Sets moved[i] for the items that were in the "from" status and
+        // persists all of those in one write.
+        CompletableFuture<Void> transitionFoods(List<FoodItem> foods, String from, String to,
+                List<String> parties, boolean[] moved) {
+            List<FoodItem> changed = new ArrayList<>(foods.size());
+            for (int i = 0; i < foods.size(); i++) {
+                FoodItem food = foods.get(i);
+                String previous = food == null ? null : food.transition(from, to, parties.get(i));
+                if (previous == null) continue;
+                reindex(food, previous);
+                changed.add(food);
+                moved[i] = true;
+            }
+            return changed.isEmpty() ? CompletableFuture.completedFuture(null) : persist(changed);
+        }
+        
+        private CompletableFuture<Void> persist(List<FoodItem> foods) {
+            if (foodSlots != null) {
+                List<CompletableFuture<Void>> stored = new ArrayList<>(foods.size() + 1);
+                for (FoodItem food : foods) {
+                    stored.add(foodSlots.update(food.slot, FoodItem.SLOT_RECEIVER, food.receiver, food.status));
+                }
+                stored.add(foodSlots.force());
+                return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+            }
+            if (journal != null) {
+                List<String> entries = new ArrayList<>(foods.size());
+                for (FoodItem food : foods) {
+                    entries.add("food|" + food.id + "|" + food.status +
+                            (food.receiver != null ? "|" + food.receiver : ""));
+                }
+                return journal.append(entries);
+            }
+            snapshotLock.lock();
+            try {
+                return writer.replace(Collections.singletonMap(FOOD_FILE, foodSnapshot()));
+            } finally {
+                snapshotLock.unlock();
+            }
+        }
+        
+        private String foodSnapshot() {
+            StringBuilder content = new StringBuilder();
+            for (FoodItem food : foodBySeq.values()) {
+                content.append(food.toRecord()).append('\n');
+            }
+            return content.toString();
+        }
+        
+        DonationRequest findRequest(String id) {
+            return id == null ? null : requestsById.get(id);
+        }
+        
+        Collection<DonationRequest> requests() {
+            return requestsBySeq.values();
+        }
+        
+        List<DonationRequest> findRequests(String status, String receiver, String donor, long after, int limit) {
+            NavigableMap<Long, DonationRequest> index = receiver != null ? requestsByReceiver.get(receiver)
+                    : donor != null ? requestsByDonor.get(donor)
+                    : status != null ? requestsByStatus.get(status)
+                    : requestsBySeq;
+            return page(index, after, limit, request ->
+                    !"deleted".equals(request.status) &&
+                    (status == null || status.equals(request.status)) &&
+                    (receiver == null || receiver.equals(request.receiver)) &&
+                    (donor == null || donor.equals(request.donor)));
+        }
+        
+        private void index(DonationRequest request) {
+            index(request, sequence.incrementAndGet());
+        }
+        
+        private void index(DonationRequest request, long seq) {
+            request.seq = seq;
+            requestsById.put(request.id, request);
+            requestsBySeq.put(request.seq, request);
+            requestsByStatus.add(request.status, request.seq, request);
+            requestsByReceiver.add(request.receiver, request.seq, request);
+            requestsByDonor.add(request.donor, request.seq, request);
+            if ("pending".equals(request.status)) {
+                pendingRequestsByKind.add(kind(request.foodType), request.seq, request);
+            }
+            request.closedAt = closed(request) ? System.currentTimeMillis() : 0;
+            stats.indexed(request);
+            requestVersion.incrementAndGet();
+            if (replication != null) replication.request(request);
+        }
+        
+        private void reindex(DonationRequest request, String previousStatus) {
+            requestsByStatus.add(request.status, request.seq, request);
+            requestsByStatus.remove(previousStatus, request.seq);
+            requestsByDonor.add(request.donor, request.seq, request);
+            if ("pending".equals(request.status)) {
+                pendingRequestsByKind.add(kind(request.foodType), request.seq, request);
+            }
+            if ("pending".equals(previousStatus)) {
+                pendingRequestsByKind.remove(kind(request.foodType), request.seq);
+            }
+            request.closedAt = closed(request) ? System.currentTimeMillis() : 0;
+            stats.moved(request, previousStatus);
+            requestVersion.incrementAndGet();
+            if (replication != null) replication.request(request);
+        }
+        
+        private void unindex(DonationRequest request, String previousStatus) {
+            requestsById.remove(request.id);
+            requestsBySeq.remove(request.seq);
+            requestsByStatus.remove(previousStatus, request.seq);
+            requestsByReceiver.remove(request.receiver, request.seq);
+            requestsByDonor.remove(request.donor, request.seq);
+            if ("pending".equals(previousStatus)) {
+                pendingRequestsByKind.remove(kind(request.foodType), request.seq);
+            }
+            stats.removed(previousStatus, request);
+            requestVersion.incrementAndGet();
+            if (replication != null) replication.removeRequest(request);
+        }
+        
+        // Publishes every change from here on to log. Changes made before are covered by the
+        // full copy each replica receives when it connects.
+        void replicateTo(ReplicationLog log) {
+            replication = log;
+        }
+        
+        // Replica side: brings this copy of a record in line with the primary's, keeping the
+        // primary's seq so list cursors mean the same on every server. Only the replication
+        // thread calls these. A restarted primary numbers its records afresh, so during its
+        // copy a held record can arrive under a new seq (it is indexed again under that one) or
+        // another record can still hold the seq that arrives (it is taken out until its own
+        // copy arrives, or dropped at the end of the copy as stale).
+        void applyFood(FoodItem food, long seq) {
+            FoodItem current = foodById.get(food.id);
+            if (current != null && current.seq != seq) {
+                unindex(current);
+                current = null;
+            }
+            if (current == null) {
+                FoodItem holder = foodBySeq.get(seq);
+                if (holder != null) unindex(holder);
+                sequence.accumulateAndGet(seq, Math::max);
+                index(food, seq);
+                return;
+            }
+            String previous = current.status;
+            if (previous.equals(food.status)) return;
+            current.receiver = food.receiver;
+            current.status = food.status;
+            reindex(current, previous);
+        }
+        
+        void applyRequest(DonationRequest request, long seq) {
+            DonationRequest current = requestsById.get(request.id);
+            if (current != null && current.seq != seq) {
+                renumbering(current);
+                current = null;
+            }
+            if (current == null) {
+                if ("deleted".equals(request.status)) return;
+                DonationRequest holder = requestsBySeq.get(seq);
+                if (holder != null) renumbering(holder);
+                sequence.accumulateAndGet(seq, Math::max);
+                index(request, seq);
+                return;
+            }
+            String previous = current.status;
+            if (previous.equals(request.status)) return;
+            current.donor = request.donor;
+            current.status = request.status;
+            if ("deleted".equals(request.status)) {
+                unindex(current, previous);
+            } else {
+                reindex(current, previous);
+            }
+        }
+        
+        // Takes out a request whose copy from a restarted primary is yet to be indexed. It was
+        // counted when it closed and will be again, or else it has gone from the primary too.
+        private void renumbering(DonationRequest request) {
+            unindex(request, request.status);
+            stats.uncounted(request);
+        }
+        
+        void dropFood(String id) {
+            FoodItem current = foodById.get(id);
+            if (current != null) unindex(current);
+        }
+        
+        void dropRequest(String id) {
+            DonationRequest current = requestsById.get(id);
+            if (current != null) unindex(current, current.status);
+        }
+        
+        Set<String> foodIds() {
+            return new HashSet<>(foodById.keySet());
+        }
+        
+        Set<String> requestIds() {
+            return new HashSet<>(requestsById.keySet());
+        }
+        
+        CompletableFuture<Void> addRequest(DonationRequest request) {
+            if (requestSlots != null) {
+                request.slot = requestSlots.add(request.status, request.toSlot(requestSlots));
+                index(request);
+                return requestSlots.force();
+            }
+            index(request);
+            return append(REQUESTS_FILE, request.toRecord());
+        }
+        
+        CompletableFuture<Void> addRequests(List<DonationRequest> requests) {
+            if (requestSlots != null) {
+                for (DonationRequest request : requests) {
+                    request.slot = requestSlots.add(request.status, request.toSlot(requestSlots));
+                    index(request);
+                }
+                return requestSlots.force();
+            }
+            StringBuilder records = new StringBuilder();
+            for (DonationRequest request : requests) {
+                index(request);
+                if (records.length() > 0) records.append('\n');
+                records.append(request.toRecord());
+            }
+            return append(REQUESTS_FILE, records.toString());
+        }
+        
+        // In journal mode, appends past the snapshot count towards the next compaction like
+        // journal entries do, which bounds the text that startup has to parse
+        private CompletableFuture<Void> append(String file, String record) {
+            if (journal != null && tailBytes.addAndGet(record.length() + 1) >= JOURNAL_COMPACT_BYTES) {
+                scheduleCompaction();
+            }
+            return writer.append(file, record);
+        }
+        
+        CompletableFuture<Void> transitionRequest(DonationRequest request, String from, String to,
+                String party) {
+            String previous = request.transition(from, to, party);
+            if (previous == null) return null;
+            reindex(request, previous);
+            return persist(request);
+        }
+        
+        private CompletableFuture<Void> persist(DonationRequest request) {
+            if (requestSlots != null) {
+                return CompletableFuture.allOf(
+                        requestSlots.update(request.slot, DonationRequest.SLOT_DONOR, request.donor, request.status),
+                        requestSlots.force());
+            }
+            if (journal != null) {
+                return journal.append("request|" + request.id + "|" + request.status +
+                        (request.donor != null ? "|" + request.donor : ""));
+            }
+            return saveRequests();
+        }
+        
+        // Returns null if another caller changed or deleted the request first
+        CompletableFuture<Void> removeRequest(DonationRequest request) {
+            String previous = request.transition(null, "deleted", null);
+            if (previous == null) return null;
+            unindex(request, previous);
+            if (requestSlots != null) {
+                requestSlots.free(request.slot);
+                return requestSlots.force();
+            }
+            if (journal != null) {
+                return journal.append("request|" + request.id + "|deleted");
+            }
+            return saveRequests();
+        }
+        
+        private CompletableFuture<Void> saveRequests() {
+            snapshotLock.lock();
+            try {
+                return writer.replace(Collections.singletonMap(REQUESTS_FILE, requestSnapshot()));
+            } finally {
+                snapshotLock.unlock();
+            }
+        }
+        
+        private String requestSnapshot() {
+            StringBuilder content = new StringBuilder();
+            for (DonationRequest request : requestsBySeq.values()) {
+                content.append(request.toRecord()).append('\n');
+            }
+            return content.toString();
+        }
+        
+        private static <T> List<T> page(NavigableMap<Long, T> index, long after, int limit,
+                Predicate<T> filter) {
+            List<T> page = new ArrayList<>();
+            for (T record : index.tailMap(after, false).values()) {
+                if (filter.test(record)) {
+                    page.add(record);
+                    if (page.size() == limit) break;
+                }
+            }
+            return page;
+        }
+        
+        // Writes fresh snapshots of both data files, then drops the entries they now contain.
+        // Entries are absolute (they set a status rather than toggle it), so a crash between
+        // the steps only means some entries get replayed onto a snapshot that has them.
+        // In journal mode users.txt is rewritten as well, and all three go into a new snapshot
+        // last; in rewrite mode users.txt is only rewritten once upgrades superseded lines.
+        // Records that closed before archiveBefore are appended to the archive and dropped from
+        // memory first (and added to foodArchived and requestsArchived), so the new files leave
+        // them out. The writer forces the archive, whatever the fsync policy, and swaps the files
+        // in only if the archive write succeeded, so a crash in between at worst archives a
+        // record twice. If it failed, the files keep the records and the caller should hand the
+        // lists to restoreArchived(). Slot files have nothing to rewrite; their archived slots
+        // are freed once the archive is durable, with the same worst case.
+        CompletableFuture<Void> compact(long archiveBefore, List<FoodItem> foodArchived,
+                List<DonationRequest> requestsArchived) {
+            Map<String, Object> contents = new LinkedHashMap<>();
+            Archive.Batch batch = archive.batch();
+            archiveFood(batch, archiveBefore, foodArchived);
+            archiveRequests(batch, archiveBefore, requestsArchived);
+            CompletableFuture<Void> archived = batch.write();
+            if (foodSlots != null) {
+                if (supersededUsers.getAndSet(0) > 0) contents.put(USERS_FILE, usersSnapshot());
+            } else if (journal != null) {
+                supersededUsers.set(0);
+                byte[] users = usersSnapshot().getBytes(StandardCharsets.UTF_8);
+                byte[] food = foodSnapshot().getBytes(StandardCharsets.UTF_8);
+                byte[] requests = requestSnapshot().getBytes(StandardCharsets.UTF_8);
+                contents.put(USERS_FILE, users);
+                contents.put(FOOD_FILE, food);
+                contents.put(REQUESTS_FILE, requests);
+                contents.put(journal.file, "");
+                contents.put(SNAPSHOT_FILE, Snapshot.encode(usersByName.values(), foodBySeq.values(),
+                        requestsBySeq.values(), users, food, requests));
+                journal.reset();
+                tailBytes.set(0);
+            } else {
+                if (supersededUsers.getAndSet(0) > 0) contents.put(USERS_FILE, usersSnapshot());
+                if (!foodArchived.isEmpty()) contents.put(FOOD_FILE, foodSnapshot());
+                if (!requestsArchived.isEmpty()) contents.put(REQUESTS_FILE, requestSnapshot());
+            }
+            CompletableFuture<Void> replaced = writer.replace(contents, batch.files(), archived);
+            if (foodSlots == null) return replaced;
+            return replaced.thenCompose(done -> {
+                for (FoodItem food : foodArchived) foodSlots.free(food.slot);
+                for (DonationRequest request : requestsArchived) requestSlots.free(request.slot);
+                // Their slots may be reused from here on, so there is nothing left to restore
+                foodArchived.clear();
+                requestsArchived.clear();
+                return CompletableFuture.allOf(foodSlots.force(), requestSlots.force());
+            });
+        }
+        
+        // Puts back the records of a compaction whose files didn't make it to disk, so the next
+        // run archives them again. They keep their seq and closing time. Callers hold all three
+        // write locks.
+        void restoreArchived(List<FoodItem> foodArchived, List<DonationRequest> requestsArchived) {
+            for (FoodItem food : foodArchived) {
+                long closedAt = food.closedAt;
+                index(food, food.seq);
+                food.closedAt = closedAt;
+            }
+            for (DonationRequest request : requestsArchived) {
+                long closedAt = request.closedAt;
+                index(request, request.seq);
+                request.closedAt = closedAt;
+                stats.uncounted(request);
+            }
+        }
+        
+        private String usersSnapshot() {
+            StringBuilder content = new StringBuilder();
+            for (User user : usersByName.values()) {
+                content.append(user.toRecord()).append('\n');
+            }
+            return content.toString();
+        }
+        
+        // Whether anything closed before the cutoff. Only the closed-status indexes are read.
+        boolean archiveDue(long cutoff) {
+            for (String status : CLOSED_FOOD) {
+                for (FoodItem food : foodByStatus.get(status).values()) {
+                    if (food.closedAt <= cutoff) return true;
+                }
+            }
+            for (String status : CLOSED_REQUESTS) {
+                for (DonationRequest request : requestsByStatus.get(status).values()) {
+                    if (request.closedAt <= cutoff) return true;
+                }
+            }
+            return false;
+        }
+        
+        // Adds the records it archives to archived
+        private void archiveFood(Archive.Batch batch, long cutoff, List<FoodItem> archived) {
+            for (String status : CLOSED_FOOD) {
+                for (FoodItem food : foodByStatus.get(status).values()) {
+                    if (food.closedAt > cutoff) continue;
+                    batch.add("food", food.closedAt, food.toRecord());
+                    unindex(food);
+                    archived.add(food);
+                }
+            }
+        }
+        
+        private void archiveRequests(Archive.Batch batch, long cutoff, List<DonationRequest> archived) {
+            for (String status : CLOSED_REQUESTS) {
+                for (DonationRequest request : requestsByStatus.get(status).values()) {
+                    if (request.closedAt > cutoff) continue;
+                    batch.add("request", request.closedAt, request.toRecord());
+                    unindex(request, status);
+                    archived.add(request);
+                }
+            }
+        }
+        
+        // Older builds could leave the last record without a newline, which the next append
+        // would run into
+        private static void terminateLastLine(String file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = raf.length();
+                if (length == 0) return;
+                raf.seek(length - 1);
+                if (raf.read() != '\n') {
+                    raf.write('\n');
+                }
+            }
+        }
+    }
+    
+    /**
+     * Running totals behind /api/stats. The repository updates them as it indexes, moves and
+     * removes records, so a read costs the number of keys rather than a pass over the records,
+     * and the counters are LongAdders, which writers on different threads bump without
+     * contending. Available food per location and pending requests per kind() rise and fall with
+     * the records. Fulfillments per donor only rise: they count requests still in the data files
+     * plus those fulfilled since startup, since archived ones are not read back. Claim latency
+     * covers food added since startup.
+     */
+    static class Stats {
+        static final String OTHER = "(other)";
+        
+        final LongAdder available = new LongAdder();
+        final LongAdder pending = new LongAdder();
+        final LongAdder fulfilled = new LongAdder();
+        final Table availableByLocation = new Table();
+        final Table pendingByFoodType = new Table();
+        final Table fulfilledByDonor = new Table();
+        // Milliseconds from add to claim (LatencyHistogram is unit-agnostic)
+        final LatencyHistogram claimLatency = new LatencyHistogram();
+        
+        // Counts by key, at most STATS_MAX_KEYS of them; later keys share OTHER. Keys are never
+        // removed, so a key's count always lands in the same place.
+        static class Table {
+            private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+            
+            void add(String key, long delta) {
+                if (key == null) return;
+                LongAdder count = counts.get(key);
+                if (count == null) {
+                    count = counts.computeIfAbsent(counts.size() < STATS_MAX_KEYS ? key : OTHER, k -> new LongAdder());
+                }
+                count.add(delta);
+            }
+            
+            // Keys with a non-zero count, sorted
+            SortedMap<String, Long> snapshot() {
+                SortedMap<String, Long> snapshot = new TreeMap<>();
+                for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+                    long count = entry.getValue().sum();
+                    if (count != 0) snapshot.put(entry.getKey(), count);
+                }
+                return snapshot;
+            }
+        }
+        
+        void indexed(FoodItem food) {
+            if ("available".equals(food.status)) available(food, 1);
+        }
+        
+        void moved(FoodItem food, String previousStatus) {
+            if ("available".equals(previousStatus)) available(food, -1);
+            if ("available".equals(food.status)) available(food, 1);
+            if ("available".equals(previousStatus) && "claimed".equals(food.status) && food.addedAt > 0) {
+                claimLatency.record(System.currentTimeMillis() - food.addedAt);
+            }
+        }
+        
+        void removed(FoodItem food) {
+            if ("available".equals(food.status)) available(food, -1);
+        }
+        
+        void indexed(DonationRequest request) {
+            if ("pending".equals(request.status)) pending(request, 1);
+            if ("fulfilled".equals(request.status)) fulfilled(request);
+        }
+        
+        void moved(DonationRequest request, String previousStatus) {
+            if ("pending".equals(previousStatus)) pending(request, -1);
+            if ("pending".equals(request.status)) pending(request, 1);
+            if ("fulfilled".equals(request.status) && !"fulfilled".equals(previousStatus)) fulfilled(request);
+        }
+        
+        void removed(String previousStatus, DonationRequest request) {
+            if ("pending".equals(previousStatus)) pending(request, -1);
+        }
+        
+        // Takes back the count of a request that is indexed (and so counted) again: one put back
+        // by Repository.restoreArchived(), or renumbered by a restarted primary
+        void uncounted(DonationRequest request) {
+            if ("fulfilled".equals(request.status)) {
+                fulfilled.decrement();
+                fulfilledByDonor.add(request.donor, -1);
+            }
+        }
+        
+        private void available(FoodItem food, long delta) {
+            available.add(delta);
+            availableByLocation.add(food.location, delta);
+        }
+        
+        private void pending(DonationRequest request, long delta) {
+            pending.add(delta);
+            pendingByFoodType.add(Repository.kind(request.foodType), delta);
+        }
+        
+        private void fulfilled(DonationRequest request) {
+            fulfilled.increment();
+            fulfilledByDonor.add(request.donor, 1);
+        }
+    }
+    
+    /**
+     * Food with coordinates, bucketed into square cells of GEO_CELL_DEGREES. nearest() visits
+     * cells in rings around the query point and stops once no cell further out can hold
+     * anything closer than the hits it has, so a query reads the cells near the point instead
+     * of every record. Longitude does not wrap at +-180.
+     */
+    static class GeoGrid {
+        private static final double EARTH_RADIUS_KM = 6371.0088;
+        private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+        
+        static class Nearby {
+            final FoodItem food;
+            final double distanceKm;
+            
+            Nearby(FoodItem food, double distanceKm) {
+                this.food = food;
+                this.distanceKm = distanceKm;
+            }
+        }
+        
+        private final double cellDegrees;
+        private final Map<Long, ConcurrentNavigableMap<Long, FoodItem>> cells = new ConcurrentHashMap<>();
+        
+        GeoGrid(double cellDegrees) {
+            this.cellDegrees = cellDegrees;
+        }
+        
+        void add(FoodItem food) {
+            if (!food.hasLocation()) return;
+            cells.computeIfAbsent(key(cell(food.lat), cell(food.lon)), c -> new ConcurrentSkipListMap<>())
+                    .put(food.seq, food);
+        }
+        
+        void remove(FoodItem food) {
+            if (!food.hasLocation()) return;
+            Map<Long, FoodItem> items = cells.get(key(cell(food.lat), cell(food.lon)));
+            if (items != null) items.remove(food.seq);
+        }
+        
+        // Up to limit available items within radiusKm of the point, closest first
+        List<Nearby> nearest(double lat, double lon, double radiusKm, int limit) {
+            int row = cell(lat);
+            int col = cell(lon);
+            // Cells narrow east-west towards the poles; size the search for the widest latitude in range
+            double maxLat = Math.min(90, Math.abs(lat) + radiusKm / KM_PER_DEGREE);
+            double cellWidthKm = cellDegrees * KM_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+            double cellKm = Math.min(cellDegrees * KM_PER_DEGREE, cellWidthKm);
+            int rows = (int) Math.ceil(radiusKm / (cellDegrees * KM_PER_DEGREE));
+            int cols = (int) Math.min(Math.ceil(radiusKm / Math.max(cellWidthKm, 1e-9)), Math.ceil(180 / cellDegrees));
+            
+            // Candidates are compared by the haversine term, which grows with distance, so the
+            // arcsine is only taken for the items returned
+            Search search = new Search(lat, lon, haversine(radiusKm));
+            for (int ring = 0; ring <= Math.max(rows, cols); ring++) {
+                for (int r = row - Math.min(ring, rows); r <= row + Math.min(ring, rows); r++) {
+                    if (Math.abs(r - row) == ring) {
+                        for (int c = col - Math.min(ring, cols); c <= col + Math.min(ring, cols); c++) {
+                            search.visit(cells.get(key(r, c)));
+                        }
+                    } else if (ring <= cols) {
+                        search.visit(cells.get(key(r, col - ring)));
+                        search.visit(cells.get(key(r, col + ring)));
+                    }
+                }
+                // Every cell in the next ring is at least ring cells from the point's own cell
+                if (search.found.size() >= limit) {
+                    search.sort();
+                    if (search.found.get(limit - 1).term <= haversine(ring * cellKm)) break;
+                }
+            }
+            search.sort();
+            List<Nearby> nearest = new ArrayList<>(Math.min(limit, search.found.size()));
+            for (Search.Candidate candidate : search.found) {
+                if (nearest.size() == limit) break;
+                nearest.add(new Nearby(candidate.food, 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(candidate.term))));
+            }
+            return nearest;
+        }
+        
+        private static class Search {
+            static class Candidate {
+                final FoodItem food;
+                final double term;
+                
+                Candidate(FoodItem food, double term) {
+                    this.food = food;
+                    this.term = term;
+                }
+            }
+            
+            final double lat;
+            final double lon;
+            final double cosLat;
+            final double maxTerm;
+            final List<Candidate> found = new ArrayList<>();
+            
+            Search(double lat, double lon, double maxTerm) {
+                this.lat = lat;
+                this.lon = lon;
+                this.cosLat = Math.cos(Math.toRadians(lat));
+                this.maxTerm = maxTerm;
+            }
+            
+            void visit(Map<Long, FoodItem> items) {
+                if (items == null) return;
+                for (FoodItem food : items.values()) {
+                    if (!"available".equals(food.status)) continue;
+                    double sinLat = Math.sin(Math.toRadians(food.lat - lat) / 2);
+                    double sinLon = Math.sin(Math.toRadians(food.lon - lon) / 2);
+                    double term = sinLat * sinLat + cosLat * Math.cos(Math.toRadians(food.lat)) * sinLon * sinLon;
+                    if (term <= maxTerm) found.add(new Candidate(food, term));
+                }
+            }
+            
+            void sort() {
+                found.sort(Comparator.comparingDouble(c -> c.term));
+            }
+        }
+        
+        // sin^2(d / 2R): the haversine of the central angle for a distance d along the surface
+        private static double haversine(double km) {
+            double half = Math.sin(Math.min(Math.PI, km / EARTH_RADIUS_KM) / 2);
+            return half * half;
+        }
+        
+        private int cell(double degrees) {
+            return (int) Math.floor(degrees / cellDegrees);
+        }
+        
+        private static long key(int row, int col) {
+            return ((long) row << 32) | (col & 0xffffffffL);
+        }
+    
+    }
+    
+    // Secondary index: attribute value -> records with that value, in sequence order
+    static class SeqIndex<T> {
+        private static final NavigableMap<Long, ?> EMPTY = Collections.emptyNavigableMap();
+        
+        private final Map<String, ConcurrentNavigableMap<Long, T>> byValue = new ConcurrentHashMap<>();
+        
+        void add(String value, long seq, T record) {
+            if (value == null) return;
+            byValue.computeIfAbsent(value, v -> new ConcurrentSkipListMap<>()).put(seq, record);
+        }
+        
+        void remove(String value, long seq) {
+            if (value == null) return;
+            Map<Long, T> records = byValue.get(value);
+            if (records != null) records.remove(seq);
+        }
+        
+        @SuppressWarnings("unchecked")
+        NavigableMap<Long, T> get(String value) {
+            NavigableMap<Long, T> records = byValue.get(value);
+            return records != null ? records : (NavigableMap<Long, T>) EMPTY;
+        }
+    }
+    
+    /**
+     * Cold storage for closed records: gzip files in ARCHIVE_DIR named kind-yyyy-MM-dd.gz after
+     * the UTC day the records closed on, one line per record as closedAt|record. Each archive
+     * run appends one gzip member to each file it touches (members concatenate into a single
+     * stream), through the writer thread like any other append. A date-range scan opens only
+     * the files named for days in the range, so history costs nothing until it is read.
+     */
+    static class Archive {
+        private static final DateTimeFormatter DAY = DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneOffset.UTC);
+        
+        private final Path dir;
+        private final Map<String, LongAdder> archived = new ConcurrentHashMap<>();
+        
+        interface Visitor {
+            // Returns false to stop the scan
+            boolean visit(long closedAt, String record) throws IOException;
+        }
+        
+        // Records bound for the archive in one run, grouped by segment
+        class Batch {
+            private final Map<String, StringBuilder> segments = new TreeMap<>();
+            
+            void add(String kind, long closedAt, String record) {
+                segments.computeIfAbsent(segment(kind, closedAt), name -> new StringBuilder())
+                        .append(closedAt).append('|').append(record).append('\n');
+                archived.computeIfAbsent(kind, k -> new LongAdder()).increment();
+            }
+            
+            CompletableFuture<Void> write() {
+                List<CompletableFuture<Void>> writes = new ArrayList<>();
+                for (Map.Entry<String, StringBuilder> entry : segments.entrySet()) {
+                    ByteArrayOutputStream member = new ByteArrayOutputStream();
+                    try (Writer out = new OutputStreamWriter(new GZIPOutputStream(member), StandardCharsets.UTF_8)) {
+                        out.append(entry.getValue());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    writes.add(writer.append(dir.resolve(entry.getKey()).toString(), member.toByteArray()));
+                }
+                return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+            }
+            
+            // The segment files write() appends to
+            List<String> files() {
+                List<String> files = new ArrayList<>();
+                for (String segment : segments.keySet()) {
+                    files.add(dir.resolve(segment).toString());
+                }
+                return files;
+            }
+        }
+        
+        Archive(Path dir) {
+            this.dir = dir;
+        }
+        
+        Batch batch() {
+            return new Batch();
+        }
+        
+        long count(String kind) {
+            LongAdder count = archived.get(kind);
+            return count == null ? 0 : count.sum();
+        }
+        
+        private static String segment(String kind, long time) {
+            return kind + "-" + DAY.format(Instant.ofEpochMilli(time)) + ".gz";
+        }
+        
+        // Visits the records of a kind that closed in [from, to), a day at a time, oldest day
+        // first and in archive order within a day. Members are decoded one at a time, so one
+        // torn by a crash is logged and skipped and the members after it are still read.
+        void scan(String kind, long from, long to, Visitor visitor) throws IOException {
+            String first = segment(kind, from);
+            String last = segment(kind, to - 1);
+            List<Path> days = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, kind + "-*.gz")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.compareTo(first) >= 0 && name.compareTo(last) <= 0) days.add(file);
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            Collections.sort(days);
+            for (Path day : days) {
+                byte[] data = Files.readAllBytes(day);
+                metrics.read(day.toString(), data.length);
+                int offset = 0;
+                while (offset < data.length) {
+                    ByteArrayOutputStream member = new ByteArrayOutputStream();
+                    int next;
+                    try {
+                        next = inflateMember(data, offset, member);
+                    } catch (ZipException e) {
+                        next = -1;
+                    }
+                    if (next < 0) {
+                        int resume = nextMember(data, offset + 1);
+                        // Nothing after it: the writer is still appending the last member; its
+                        // records aren't durable yet and are still served by the live lists
+                        if (resume < 0) break;
+                        System.err.println("Archive " + day + ": skipped a corrupt member at byte " + offset);
+                        offset = resume;
+                        continue;
+                    }
+                    offset = next;
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                            new ByteArrayInputStream(member.toByteArray()), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            int bar = line.indexOf('|');
+                            if (bar < 1) continue;
+                            long closedAt;
+                            try {
+                                closedAt = Long.parseLong(line.substring(0, bar));
+                            } catch (NumberFormatException e) {
+                                continue;
+                            }
+                            if (closedAt < from || closedAt >= to) continue;
+                            if (!visitor.visit(closedAt, line.substring(bar + 1))) return;
+                        }
+                    }
+                }
+            }
+        }
+        
+        // Inflates the gzip member at offset (as GZIPOutputStream writes them: no optional
+        // header fields) into out and returns the offset just past it, or -1 if the data ends
+        // first. Throws ZipException if the member is corrupt or its CRC or length don't match.
+        private static int inflateMember(byte[] data, int offset, ByteArrayOutputStream out)
+                throws ZipException {
+            if (data.length - offset < 10) return -1;
+            if (!memberStarts(data, offset) || data[offset + 3] != 0) {
+                throw new ZipException("Not a gzip member");
+            }
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, offset + 10, data.length - offset - 10);
+                CRC32 crc = new CRC32();
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && inflater.needsInput()) return -1;
+                    if (n == 0 && inflater.needsDictionary()) throw new ZipException("Unexpected dictionary");
+                    crc.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+                int end = data.length - inflater.getRemaining();
+                if (data.length - end < 8) return -1;
+                ByteBuffer trailer = ByteBuffer.wrap(data, end, 8).order(ByteOrder.LITTLE_ENDIAN);
+                if (trailer.getInt() != (int) crc.getValue() || trailer.getInt() != (int) inflater.getBytesWritten()) {
+                    throw new ZipException("Corrupt gzip member");
+                }
+                return end + 8;
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+        
+        // Offset of the next gzip header at or after from, or -1
+        private static int nextMember(byte[] data, int from) {
+            for (int i = from; i + 10 <= data.length; i++) {
+                if (memberStarts(data, i)) return i;
+            }
+            return -1;
+        }
+        
+        private static boolean memberStarts(byte[] data, int offset) {
+            return data[offset] == (byte) 0x1f && data[offset + 1] == (byte) 0x8b && data[offset + 2] == 8;
+        }
+    }
+    
+    /**
+     * Append-only log of status changes (claimed, cancelled, fulfilled, deleted). Each entry is
+     * one short line, so a claim costs a single small append instead of a full-file rewrite.
+     * Entries are replayed over the data files at startup and folded back into them by
+     * compactJournal() once the log grows past JOURNAL_COMPACT_BYTES.
+     */
+    static class Journal {
+        final String file;
+        private final AtomicLong bytes = new AtomicLong();
+        
+        Journal(String file) {
+            this.file = file;
+        }
+        
+        // Creates the log if needed and returns the entries left over from the last run
+        List<String> open() throws IOException {
+            Path path = Paths.get(file);
+            if (!Files.exists(path)) {
+                Files.createFile(path);
+            }
+            bytes.set(Files.size(path));
+            metrics.read(file, bytes.get());
+            return Files.readAllLines(path);
+        }
+        
+        CompletableFuture<Void> append(String entry) {
+            if (bytes.addAndGet(entry.length() + 1) >= JOURNAL_COMPACT_BYTES) {
+                scheduleCompaction();
+            }
+            return writer.append(file, entry);
+        }
+        
+        // Several entries as one write
+        CompletableFuture<Void> append(List<String> entries) {
+            return append(String.join("\n", entries));
+        }
+        
+        // Called when a compaction has captured everything logged so far
+        void reset() {
+            bytes.set(0);
+        }
+    }
+    
+    /**
+     * Binary image of users, food and requests, written by compaction alongside the text files
+     * it rewrites. Strings are length-prefixed UTF-8, so loading is a walk over a memory-mapped
+     * buffer with no splitting or number parsing. The header holds the length and CRC32 of each
+     * text file as written; the files only grow by appends until the next compaction, so lines
+     * past those lengths are the tail that load() still parses. The image ends with a CRC32 of
+     * everything before it. A snapshot that fails either check (torn write, or files replaced
+     * without it) is ignored, and the text files are read in full as before.
+     */
+    static class Snapshot {
+        private static final int MAGIC = 0x46445331; // "FDS1"
+        private static final long CHUNK = 1L << 30;
+        
+        final long usersLength;
+        final long foodLength;
+        final long requestsLength;
+        private final ByteBuffer records;
+        
+        private Snapshot(long usersLength, long foodLength, long requestsLength, ByteBuffer records) {
+            this.usersLength = usersLength;
+            this.foodLength = foodLength;
+            this.requestsLength = requestsLength;
+            this.records = records;
+        }
+        
+        static byte[] encode(Collection<User> users, Collection<FoodItem> foods,
+                Collection<DonationRequest> requests, byte[] usersFile, byte[] foodFile, byte[] requestsFile) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (usersFile.length + foodFile.length +
+                    requestsFile.length) / 4 * 5);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                for (byte[] file : Arrays.asList(usersFile, foodFile, requestsFile)) {
+                    CRC32 crc = new CRC32();
+                    crc.update(file);
+                    out.writeLong(file.length);
+                    out.writeLong(crc.getValue());
+                }
+                // The collections are live maps' views, but compaction holds every write lock
+                List<User> userList = new ArrayList<>(users);
+                out.writeInt(userList.size());
+                for (User user : userList) {
+                    writeString(out, user.username);
+                    writeString(out, user.password);
+                    writeString(out, user.type);
+                }
+                List<FoodItem> foodList = new ArrayList<>(foods);
+                out.writeInt(foodList.size());
+                for (FoodItem food : foodList) {
+                    writeString(out, food.id);
+                    writeString(out, food.donator);
+                    writeString(out, food.name);
+                    writeString(out, food.quantity);
+                    writeString(out, food.location);
+                    writeString(out, food.status);
+                    writeString(out, food.receiver);
+                    out.writeDouble(food.lat);
+                    out.writeDouble(food.lon);
+                    out.writeLong(food.expiresAt);
+                }
+                List<DonationRequest> requestList = new ArrayList<>(requests);
+                out.writeInt(requestList.size());
+                for (DonationRequest request : requestList) {
+                    writeString(out, request.id);
+                    writeString(out, request.receiver);
+                    writeString(out, request.foodType);
+                    writeString(out, request.quantity);
+                    writeString(out, request.status);
+                    writeString(out, request.donor);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            CRC32 crc = new CRC32();
+            byte[] image = bytes.toByteArray();
+            crc.update(image);
+            byte[] signed = Arrays.copyOf(image, image.length + 8);
+            ByteBuffer.wrap(signed, image.length, 8).putLong(crc.getValue());
+            return signed;
+        }
+        
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        
+        // Null when there is no usable snapshot
+        static Snapshot open(String file) throws IOException {
+            Path path = Paths.get(file);
+            if (!Files.exists(path)) return null;
+            ByteBuffer image;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 4 + 3 * 16 + 8 || size > Integer.MAX_VALUE) return reject(file, "unexpected size " + size);
+                image = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            metrics.read(file, image.capacity());
+            int end = image.capacity() - 8;
+            CRC32 crc = new CRC32();
+            crc.update(image.duplicate().limit(end));
+            if (crc.getValue() != image.getLong(end) || image.getInt(0) != MAGIC) {
+                return reject(file, "checksum mismatch");
+            }
+            image.position(4).limit(end);
+            long[] lengths = new long[3];
+            String[] files = {USERS_FILE, FOOD_FILE, REQUESTS_FILE};
+            for (int i = 0; i < files.length; i++) {
+                lengths[i] = image.getLong();
+                if (!matches(files[i], lengths[i], image.getLong())) {
+                    return reject(file, files[i] + " changed since it was written");
+                }
+            }
+            return new Snapshot(lengths[0], lengths[1], lengths[2], image.slice());
+        }
+        
+        private static Snapshot reject(String file, String reason) {
+            System.err.println("Ignoring " + file + " (" + reason + "); reading the data files in full");
+            return null;
+        }
+        
+        // Whether the file still starts with the bytes the snapshot was taken from
+        private static boolean matches(String file, long length, long expected) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                if (channel.size() < length) return false;
+                CRC32 crc = new CRC32();
+                for (long position = 0; position < length; position += CHUNK) {
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK, length - position)));
+                }
+                return crc.getValue() == expected;
+            }
+        }
+        
+        void load(Consumer<User> users, Consumer<FoodItem> foods, Consumer<DonationRequest> requests) {
+            ByteBuffer in = records.duplicate();
+            for (int i = in.getInt(); i > 0; i--) {
+                users.accept(new User(readString(in), readString(in), readString(in)));
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                String id = readString(in);
+                String donator = readString(in);
+                String name = readString(in);
+                String quantity = readString(in);
+                String location = readString(in);
+                String status = readString(in);
+                String receiver = readString(in);
+                foods.accept(new FoodItem(id, donator, name, quantity, location, in.getDouble(), in.getDouble(),
+                        in.getLong(), status, receiver));
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                requests.accept(new DonationRequest(readString(in), readString(in), readString(in),
+                        readString(in), readString(in), readString(in)));
+            }
+        }
+        
+        private static String readString(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) return null;
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Food or requests in fixed-size slots of a memory-mapped file, the storage behind
+     * -Dfds.persistence=slots. A slot is a status byte followed by a fixed number of 8-byte
+     * fields. Numbers are stored as they are. Strings are references (offset << 20 | length)
+     * into an append-only heap file of UTF-8 bytes, and repeated strings (names, places,
+     * parties) are interned, so most changes append nothing to the heap. A status change writes
+     * the party reference and then the status byte in place; loading is one sequential pass over
+     * the slots with no line splitting or number parsing.
+     *
+     * <p>Slots are written with plain stores into the mapping. Durability comes from the
+     * group-commit writer: force() hands it an empty append to the slot file, so the file is
+     * forced under FSYNC_POLICY along with everything else in its batch (fsync covers pages
+     * dirtied through a mapping). Heap bytes go through the writer ahead of the slot that refers
+     * to them, and an update in place waits until those it refers to are durable, since the
+     * kernel may write a dirty slot page back at any time. A slot left referring past the end of
+     * the heap by a crash was therefore never acknowledged, and load drops it. Status 0 marks a
+     * free slot, which the next add reuses.
+     */
+    static class SlotStore {
+        private static final int MAGIC = 0x46445353; // "FDSS"
+        private static final int HEADER_BYTES = 64;
+        private static final int SEGMENT_SLOTS = 1 << 16;
+        private static final int LENGTH_BITS = 20;
+        private static final long NULL = -1;
+        // Status byte values; 0 is a free slot
+        private static final List<String> STATUSES = Arrays.asList(null,
+                "available", "claimed", "expired", "pending", "fulfilled", "cancelled");
+        private static final int MAX_INTERNED = 100_000;
+        private static final byte[] FORCE = new byte[0];
+        
+        final String file;
+        final String heapFile;
+        private final int fields;
+        // The first stringFields fields are string references, the rest plain values
+        private final int stringFields;
+        private final int slotBytes;
+        private FileChannel channel;
+        // Mapped SEGMENT_SLOTS slots at a time, so the file grows without remapping what exists
+        private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private final ReentrantLock growLock = new ReentrantLock();
+        private final AtomicInteger nextSlot = new AtomicInteger();
+        private final Queue<Integer> free = new ConcurrentLinkedQueue<>();
+        private final Map<String, Long> interned = new ConcurrentHashMap<>();
+        // Keeps heap offsets in the order the appends reach the writer
+        private final ReentrantLock heapLock = new ReentrantLock();
+        private long heapLength;
+        private volatile CompletableFuture<Void> lastHeapWrite = CompletableFuture.completedFuture(null);
+        // Heap bytes known to be durable; appends complete in order, so this only grows
+        private final AtomicLong durableHeapLength = new AtomicLong();
+        
+        interface Visitor {
+            void visit(int slot, String status, Slot fields) throws IOException;
+        }
+        
+        // One slot's fields during load()
+        static class Slot {
+            private final ByteBuffer heap;
+            private final Map<Long, String> strings;
+            private final long[] values;
+            
+            private Slot(ByteBuffer heap, Map<Long, String> strings, int fields) {
+                this.heap = heap;
+                this.strings = strings;
+                this.values = new long[fields];
+            }
+            
+            long value(int field) {
+                return values[field];
+            }
+            
+            double decimal(int field) {
+                return Double.longBitsToDouble(values[field]);
+            }
+            
+            // Ids and other strings that never repeat
+            String uniqueString(int field) {
+                long ref = values[field];
+                return ref == NULL ? null : decode(ref);
+            }
+            
+            // Each distinct reference is decoded once, so interned fields share one String
+            String string(int field) {
+                long ref = values[field];
+                if (ref == NULL) return null;
+                String value = strings.get(ref);
+                if (value == null) {
+                    value = decode(ref);
+                    strings.put(ref, value);
+                }
+                return value;
+            }
+            
+            private String decode(long ref) {
+                byte[] bytes = new byte[(int) (ref & ((1 << LENGTH_BITS) - 1))];
+                ByteBuffer view = heap.duplicate();
+                view.position((int) (ref >>> LENGTH_BITS));
+                view.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            
+            // Whether every string field lies within the heap as it was found
+            private boolean valid(int stringFields) {
+                for (int i = 0; i < stringFields; i++) {
+                    long ref = values[i];
+                    if (ref != NULL && (ref >>> LENGTH_BITS) + (ref & ((1 << LENGTH_BITS) - 1)) > heap.limit()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        
+        SlotStore(String file, String heapFile, int fields, int stringFields) {
+            this.file = file;
+            this.heapFile = heapFile;
+            this.fields = fields;
+            this.stringFields = stringFields;
+            this.slotBytes = 8 + fields * 8;
+        }
+        
+        static SlotStore food(String file, String heapFile) {
+            return new SlotStore(file, heapFile, FoodItem.SLOT_FIELDS, FoodItem.SLOT_STRINGS);
+        }
+        
+        static SlotStore requests(String file, String heapFile) {
+            return new SlotStore(file, heapFile, DonationRequest.SLOT_FIELDS, DonationRequest.SLOT_FIELDS);
+        }
+        
+        // Maps the slot file (creating both files if needed) and passes every record to the
+        // visitor, in slot order
+        void open(Visitor visitor) throws IOException {
+            channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            if (header.getInt(0) == 0 && channel.size() == HEADER_BYTES) {
+                header.putInt(0, MAGIC).putInt(4, fields).putInt(8, slotBytes);
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != fields || header.getInt(8) != slotBytes) {
+                throw new IOException(file + " is not a slot file with " + fields + " fields");
+            }
+            long segmentBytes = (long) SEGMENT_SLOTS * slotBytes;
+            int count = (int) ((channel.size() - HEADER_BYTES + segmentBytes - 1) / segmentBytes);
+            if (count > 0) grow(count * SEGMENT_SLOTS - 1);
+            
+            Path heapPath = Paths.get(heapFile);
+            if (!Files.exists(heapPath)) Files.createFile(heapPath);
+            ByteBuffer heap;
+            try (FileChannel heapChannel = FileChannel.open(heapPath, StandardOpenOption.READ)) {
+                if (heapChannel.size() > Integer.MAX_VALUE) throw new IOException(heapFile + " is over 2 GB");
+                heapLength = heapChannel.size();
+                durableHeapLength.set(heapLength);
+                heap = heapChannel.map(FileChannel.MapMode.READ_ONLY, 0, heapLength);
+            }
+            metrics.read(file, channel.size());
+            metrics.read(heapFile, heapLength);
+            
+            Map<Long, String> strings = new HashMap<>();
+            Slot slot = new Slot(heap, strings, fields);
+            List<Integer> empty = new ArrayList<>();
+            int last = -1;
+            MappedByteBuffer[] mapped = segments;
+            for (int i = 0; i < mapped.length * SEGMENT_SLOTS; i++) {
+                ByteBuffer segment = mapped[i / SEGMENT_SLOTS];
+                int offset = (i % SEGMENT_SLOTS) * slotBytes;
+                int status = segment.get(offset);
+                if (status > 0 && status < STATUSES.size()) {
+                    for (int field = 0; field < fields; field++) {
+                        slot.values[field] = segment.getLong(offset + 8 + field * 8);
+                    }
+                    if (slot.valid(stringFields)) {
+                        visitor.visit(i, STATUSES.get(status), slot);
+                        last = i;
+                        continue;
+                    }
+                }
+                empty.add(i);
+            }
+            for (int i : empty) {
+                if (i > last) break;
+                free.add(i);
+            }
+            nextSlot.set(last + 1);
+            // Seed the interning table with the repeated strings already on the heap
+            for (Map.Entry<Long, String> entry : strings.entrySet()) {
+                if (interned.size() >= MAX_INTERNED) break;
+                interned.putIfAbsent(entry.getValue(), entry.getKey());
+            }
+        }
+        
+        // Fills a free slot and returns its number
+        int add(String status, long[] values) {
+            Integer reused = free.poll();
+            int slot = reused != null ? reused : nextSlot.getAndIncrement();
+            ByteBuffer segment = segment(slot);
+            int offset = (slot % SEGMENT_SLOTS) * slotBytes;
+            for (int field = 0; field < fields; field++) {
+                segment.putLong(offset + 8 + field * 8, values[field]);
+            }
+            segment.put(offset, code(status));
+            return slot;
+        }
+        
+        // A status change in place over an acknowledged record: the field (the party) first, then
+        // the status byte. If the party's string isn't durable on the heap yet, waits for it
+        // first; the returned future fails, leaving the slot as it was, if that append did.
+        CompletableFuture<Void> update(int slot, int field, String party, String status) {
+            long ref = ref(party);
+            if (ref != NULL && (ref >>> LENGTH_BITS) + (ref & ((1 << LENGTH_BITS) - 1)) > durableHeapLength.get()) {
+                try {
+                    lastHeapWrite.get();
+                } catch (ExecutionException e) {
+                    return CompletableFuture.failedFuture(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+            ByteBuffer segment = segment(slot);
+            int offset = (slot % SEGMENT_SLOTS) * slotBytes;
+            segment.putLong(offset + 8 + field * 8, ref);
+            segment.put(offset, code(status));
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        void free(int slot) {
+            segment(slot).put((slot % SEGMENT_SLOTS) * slotBytes, (byte) 0);
+            free.add(slot);
+        }
+        
+        // Completes once every slot write and heap append made so far is durable
+        CompletableFuture<Void> force() {
+            return CompletableFuture.allOf(lastHeapWrite, writer.append(file, FORCE));
+        }
+        
+        // A reference to the string on the heap, appending it unless an equal one is there
+        long ref(String value) {
+            if (value == null) return NULL;
+            Long ref = interned.get(value);
+            if (ref != null) return ref;
+            ref = append(value);
+            if (interned.size() < MAX_INTERNED) interned.putIfAbsent(value, ref);
+            return ref;
+        }
+        
+        // The same for strings that never repeat, such as ids, which would only crowd the table
+        long uniqueRef(String value) {
+            return value == null ? NULL : append(value);
+        }
+        
+        int used() {
+            return nextSlot.get() - free.size();
+        }
+        
+        private long append(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length >= 1 << LENGTH_BITS) throw new IllegalArgumentException("String too long for a slot");
+            heapLock.lock();
+            try {
+                long offset = heapLength;
+                heapLength += bytes.length;
+                long end = heapLength;
+                lastHeapWrite = writer.append(heapFile, bytes);
+                lastHeapWrite.thenRun(() -> durableHeapLength.accumulateAndGet(end, Math::max));
+                return offset << LENGTH_BITS | bytes.length;
+            } finally {
+                heapLock.unlock();
+            }
+        }
+        
+        private static byte code(String status) {
+            int code = STATUSES.indexOf(status);
+            if (code <= 0) throw new IllegalArgumentException("No slot status for " + status);
+            return (byte) code;
+        }
+        
+        private ByteBuffer segment(int slot) {
+            MappedByteBuffer[] mapped = segments;
+            if (slot / SEGMENT_SLOTS >= mapped.length) {
+                grow(slot);
+                mapped = segments;
+            }
+            return mapped[slot / SEGMENT_SLOTS];
+        }
+        
+        // Maps segments up to the one holding slot; mapping past the end extends the file
+        private void grow(int slot) {
+            growLock.lock();
+            try {
+                MappedByteBuffer[] mapped = segments;
+                int needed = slot / SEGMENT_SLOTS + 1;
+                if (needed <= mapped.length) return;
+                MappedByteBuffer[] grown = Arrays.copyOf(mapped, needed);
+                long segmentBytes = (long) SEGMENT_SLOTS * slotBytes;
+                for (int i = mapped.length; i < needed; i++) {
+                    grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * segmentBytes, segmentBytes);
+                }
+                segments = grown;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                growLock.unlock();
+            }
+        }
+    }
+    
+    enum FsyncPolicy { ALWAYS, INTERVAL, OS }
+    
+    /**
+     * Owns every data file handle on a single thread. Appends queued by concurrent handlers are
+     * drained in batches, so a batch costs one FileChannel write per file touched and, under
+     * FsyncPolicy.ALWAYS, one force() per file. Each caller's future completes once its record
+     * is durable under the configured policy: ALWAYS after the batch is forced, INTERVAL after
+     * the next periodic force, OS as soon as the bytes are handed to the kernel.
+     * Replacements (snapshots) run in queue order with the appends around them.
+     */
+    static class GroupCommitWriter implements Runnable {
+        private static final int MAX_BATCH = 1024;
+        
+        private static class Op {
+            final String file;
+            final byte[] data;
+            final Map<String, ?> replacements;
+            // For replacements: files to force first and the appends to them that must have succeeded
+            final Collection<String> forced;
+            final CompletableFuture<?> prerequisite;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            
+            Op(String file, byte[] data, Map<String, ?> replacements) {
+                this(file, data, replacements, Collections.emptyList(), CompletableFuture.completedFuture(null));
+            }
+            
+            Op(String file, byte[] data, Map<String, ?> replacements, Collection<String> forced,
+                    CompletableFuture<?> prerequisite) {
+                this.file = file;
+                this.data = data;
+                this.replacements = replacements;
+                this.forced = forced;
+                this.prerequisite = prerequisite;
+            }
+        }
+        
+        private static final Op SHUTDOWN = new Op(null, null, null);
+        
+        private final FsyncPolicy policy;
+        private final long intervalNanos;
+        private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+        private final Thread thread = new Thread(this, "group-commit-writer");
+        
+        // Writer-thread state: open channels and appends written but not yet forced, per file
+        private final Map<String, FileChannel> channels = new HashMap<>();
+        private final Map<String, List<Op>> unsynced = new LinkedHashMap<>();
+        private long lastSync = System.nanoTime();
+        
+        // Counters for judging how well writes are being grouped
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong syncs = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final Map<String, LongAdder> bytesByFile = new ConcurrentHashMap<>();
+        final LatencyHistogram syncLatency = new LatencyHistogram();
+        
+        GroupCommitWriter(FsyncPolicy policy, long intervalMs) {
+            this.policy = policy;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+            thread.setDaemon(true);
+        }
+        
+        void start() {
+            thread.start();
+        }
+        
+        CompletableFuture<Void> append(String file, String record) {
+            return append(file, (record + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        
+        // Appends data exactly as given
+        CompletableFuture<Void> append(String file, byte[] data) {
+            return enqueue(new Op(file, data, null));
+        }
+        
+        // Atomically swaps in new contents (a String or byte[]) for each file, in map order,
+        // stopping at the first failure
+        CompletableFuture<Void> replace(Map<String, ?> contents) {
+            return enqueue(new Op(null, null, contents));
+        }
+        
+        // Like replace, but first forces the given files whatever the policy, and leaves every
+        // file as it is (failing the future) unless prerequisite, the appends queued to them
+        // ahead of this, completed normally
+        CompletableFuture<Void> replace(Map<String, ?> contents, Collection<String> forced,
+                CompletableFuture<?> prerequisite) {
+            return enqueue(new Op(null, null, contents, forced, prerequisite));
+        }
+        
+        int queued() {
+            return queue.size();
+        }
+        
+        private void written(String file, int bytes) {
+            bytesWritten.addAndGet(bytes);
+            bytesByFile.computeIfAbsent(file, f -> new LongAdder()).add(bytes);
+        }
+        
+        private CompletableFuture<Void> enqueue(Op op) {
+            queue.add(op);
+            return op.done;
+        }
+        
+        // Drains what is already queued, forces it regardless of policy and stops the thread
+        void close() {
+            queue.add(SHUTDOWN);
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long count = records.get();
+            long batchCount = batches.get();
+            System.out.println("Group commit: " + count + " records in " + batchCount + " batches (" +
+                    (batchCount == 0 ? 0 : count / batchCount) + " per batch), " + syncs.get() + " fsyncs");
+        }
+        
+        @Override
+        public void run() {
+            List<Op> batch = new ArrayList<>();
+            boolean running = true;
+            while (running) {
+                try {
+                    Op first;
+                    if (unsynced.isEmpty()) {
+                        first = queue.take();
+                    } else {
+                        // Appends are waiting on an INTERVAL sync; don't sleep past it
+                        long wait = intervalNanos - (System.nanoTime() - lastSync);
+                        first = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    }
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                    running = !batch.remove(SHUTDOWN);
+                    writeBatch(batch);
+                    batch.clear();
+                    if (!running || policy == FsyncPolicy.ALWAYS ||
+                            System.nanoTime() - lastSync >= intervalNanos) {
+                        sync();
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+            sync();
+            for (FileChannel channel : channels.values()) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        
+        private void writeBatch(List<Op> batch) {
+            Map<String, ByteArrayOutputStream> buffers = new LinkedHashMap<>();
+            Map<String, List<Op>> pending = new HashMap<>();
+            for (Op op : batch) {
+                if (op.replacements != null) {
+                    flush(buffers, pending);
+                    replaceFiles(op);
+                } else {
+                    buffers.computeIfAbsent(op.file, f -> new ByteArrayOutputStream())
+                            .write(op.data, 0, op.data.length);
+                    pending.computeIfAbsent(op.file, f -> new ArrayList<>()).add(op);
+                }
+            }
+            flush(buffers, pending);
+        }
+        
+        // One write per file for everything appended to it in this batch
+        private void flush(Map<String, ByteArrayOutputStream> buffers, Map<String, List<Op>> pending) {
+            for (Map.Entry<String, ByteArrayOutputStream> entry : buffers.entrySet()) {
+                String file = entry.getKey();
+                List<Op> ops = pending.get(file);
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(entry.getValue().toByteArray());
+                    FileChannel channel = channel(file);
+                    while (data.hasRemaining()) {
+                        written(file, channel.write(data));
+                    }
+                    records.addAndGet(ops.size());
+                    batches.incrementAndGet();
+                    if (policy == FsyncPolicy.OS) {
+                        for (Op op : ops) op.done.complete(null);
+                    } else {
+                        unsynced.computeIfAbsent(file, f -> new ArrayList<>()).addAll(ops);
+                    }
+                } catch (IOException e) {
+                    for (Op op : ops) op.done.completeExceptionally(e);
+                }
+            }
+            buffers.clear();
+            pending.clear();
+        }
+        
+        private void sync() {
+            long start = System.nanoTime();
+            for (Map.Entry<String, List<Op>> entry : unsynced.entrySet()) {
+                try {
+                    channel(entry.getKey()).force(false);
+                    for (Op op : entry.getValue()) op.done.complete(null);
+                } catch (IOException e) {
+                    for (Op op : entry.getValue()) op.done.completeExceptionally(e);
+                }
+            }
+            if (!unsynced.isEmpty()) {
+                syncs.incrementAndGet();
+                syncLatency.record(System.nanoTime() - start);
+                unsynced.clear();
+            }
+            lastSync = System.nanoTime();
+        }
+        
+        // Snapshots are written to a temp file, forced and renamed over the original, so a
+        // crash leaves either the old or the new file, never a half-written one
+        private void replaceFiles(Op op) {
+            sync();
+            try {
+                for (String file : op.forced) {
+                    channel(file).force(false);
+                }
+                // Earlier appends were flushed and synced above, so the prerequisite has settled
+                if (!op.prerequisite.isDone() || op.prerequisite.isCompletedExceptionally()) {
+                    throw new IOException("Not replaced: a write it depends on failed");
+                }
+                for (Map.Entry<String, ?> entry : op.replacements.entrySet()) {
+                    Path target = Paths.get(entry.getKey());
+                    Path tmp = Paths.get(entry.getKey() + ".tmp");
+                    FileChannel old = channels.remove(entry.getKey());
+                    if (old != null) old.close();
+                    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        Object content = entry.getValue();
+                        ByteBuffer data = ByteBuffer.wrap(content instanceof byte[]
+                                ? (byte[]) content : content.toString().getBytes(StandardCharsets.UTF_8));
+                        while (data.hasRemaining()) {
+                            written(entry.getKey(), channel.write(data));
+                        }
+                        channel.force(true);
+                    }
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+                op.done.complete(null);
+            } catch (IOException e) {
+                op.done.completeExceptionally(e);
+            }
+        }
+        
+        private FileChannel channel(String file) throws IOException {
+            FileChannel channel = channels.get(file);
+            if (channel == null) {
+                channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channels.put(file, channel);
+            }
+            return channel;
+        }
+    }
+    
+    static class RegisterHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "username", "password", "type");
+                if (!recordSafe(exchange, params)) return;
+                
+                String username = params.get("username");
+                String password = params.get("password");
+                String type = params.get("type");
+                
+                if (username == null || password == null || type == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
+                    return;
+                }
+                
+                // Cheap early answer; addUser re-checks atomically
+                if (repository.findUser(username) != null) {
+                    sendResponse(exchange, 400, "{\"error\":\"Username already exists\"}");
+                    return;
+                }
+                
+                // Hash before taking any lock, on the hashing pool
+                String hash;
+                try {
+                    hash = hashing(() -> Passwords.hash(password));
+                } catch (RejectedExecutionException e) {
+                    sendBusy(exchange);
+                    return;
+                }
+                
+                // Acquire lock with timeout to prevent deadlock; a compaction holding it for
+                // longer than a request may queue means shedding this one
+                if (!userLock.readLock().tryLock(admission.maxQueueNanos, TimeUnit.NANOSECONDS)) {
+                    sendBusy(exchange);
+                    return;
+                }
+                
+                CompletableFuture<Void> durable;
+                try {
+                    durable = repository.addUser(new User(username, hash, type));
+                } finally {
+                    userLock.readLock().unlock();
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"Username already exists\"}");
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    sendResponse(exchange, 200, "{\"success\":true,\"username\":\"" + username + "\"}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class LoginHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "username", "password");
+                if (!recordSafe(exchange, params)) return;
+                
+                String username = params.get("username");
+                String password = params.get("password");
+                if (password == null) {
+                    sendResponse(exchange, 401, "{\"error\":\"Invalid credentials\"}");
+                    return;
+                }
+                
+                // The user map is concurrent, so the lookup needs no lock
+                User user = repository.findUser(username);
+                String upgraded;
+                try {
+                    // Verifies and, for a legacy plaintext record, hashes in the same pool task.
+                    // null means wrong password; the stored value itself means nothing to upgrade.
+                    upgraded = hashing(() -> {
+                        if (!Passwords.verify(password, user != null ? user.password : null)) return null;
+                        return Passwords.isHashed(user.password) ? user.password : Passwords.hash(password);
+                    });
+                } catch (RejectedExecutionException e) {
+                    sendBusy(exchange);
+                    return;
+                }
+                if (upgraded == null) {
+                    sendResponse(exchange, 401, "{\"error\":\"Invalid credentials\"}");
+                    return;
+                }
+                
+                if (!upgraded.equals(user.password)) {
+                    CompletableFuture<Void> durable;
+                    userLock.readLock().lock();
+                    try {
+                        durable = repository.upgradeUser(user, new User(user.username, upgraded, user.type));
+                    } finally {
+                        userLock.readLock().unlock();
+                    }
+                    if (durable != null) {
+                        awaitDurable(durable);
+                        if (repository.usersNeedRewrite()) scheduleCompaction();
+                    }
+                }
+                
+                SessionStore.Session session = sessions.create(user);
+                String response = "{\"success\":true,\"username\":\"" + user.username +
+                                "\",\"type\":\"" + user.type + "\",\"token\":\"" + session.token + "\"}";
+                sendResponse(exchange, 200, response);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    // Ends the session whose token is sent; succeeds even if it had already expired
+    static class LogoutHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+                sendAuthError(exchange, new AuthException(401, "Missing session token"));
+                return;
+            }
+            sessions.revoke(header.substring(7).trim());
+            sendResponse(exchange, 200, "{\"success\":true}");
+        }
+    }
+    
+    static class AddFoodHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "donator", "name", "quantity", "location", "lat", "lon", "expiresAt");
+                if (!recordSafe(exchange, params)) return;
+                
+                String donator = actAs(exchange, params.get("donator"));
+                FoodItem food;
+                try {
+                    food = newFood(params, donator);
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+                    return;
+                }
+                CompletableFuture<Void> durable;
+                foodLock.readLock().lock();
+                try {
+                    durable = repository.addFood(food);
+                } finally {
+                    foodLock.readLock().unlock();
+                }
+                
+                try {
+                    // Wait outside the lock so concurrent adds can share one write and force()
+                    awaitDurable(durable);
+                    events.food("added", food);
+                    matcher.offer(food);
+                    expiry.schedule(food);
+                    sendResponse(exchange, 200, "{\"success\":true,\"id\":\"" + food.id + "\"}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+        
+        // A new available item from an add-food body. Throws IllegalArgumentException, with
+        // the message for the 400, when the coordinates or expiry are invalid.
+        static FoodItem newFood(Map<String, String> params, String donator) {
+            // Optional pickup coordinates; both or neither
+            double lat = Double.NaN;
+            double lon = Double.NaN;
+            if (params.containsKey("lat") || params.containsKey("lon")) {
+                try {
+                    lat = Double.parseDouble(params.get("lat"));
+                    lon = Double.parseDouble(params.get("lon"));
+                } catch (NullPointerException | NumberFormatException e) {
+                    lat = Double.NaN;
+                }
+                if (!FoodItem.validLocation(lat, lon)) {
+                    throw new IllegalArgumentException("Invalid coordinates");
+                }
+            }
+            
+            // Optional expiry: an ISO-8601 time with an offset, or epoch milliseconds
+            long expiresAt = 0;
+            if (params.containsKey("expiresAt")) {
+                expiresAt = parseTime(params.get("expiresAt"));
+                if (expiresAt <= System.currentTimeMillis()) {
+                    throw new IllegalArgumentException("Invalid or past expiresAt");
+                }
+            }
+            
+            String id = UUID.randomUUID().toString().substring(0, 8);
+            return new FoodItem(id, donator, params.get("name"), params.get("quantity"),
+                    params.get("location"), lat, lon, expiresAt, "available", null);
+        }
+    }
+    
+    // POST /api/food/add-batch: an array of /api/food/add bodies, added under one lock
+    // acquisition with one append. Invalid items are skipped, or with ?atomic=true fail the
+    // whole batch with 400 before anything is added.
+    static class AddFoodBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                List<Map<String, String>> items = parseBatch(exchange,
+                        "donator", "name", "quantity", "location", "lat", "lon", "expiresAt");
+                if (items == null) return;
+                boolean atomic = atomic(exchange);
+                
+                BatchResults results = new BatchResults(items.size());
+                List<FoodItem> foods = new ArrayList<>(items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    Map<String, String> params = items.get(i);
+                    try {
+                        FoodItem food = AddFoodHandler.newFood(params, actAs(exchange, params.get("donator")));
+                        foods.add(food);
+                        results.succeeded(i, food.id);
+                    } catch (IllegalArgumentException e) {
+                        results.failed(i, e.getMessage());
+                    }
+                }
+                if (atomic && results.anyFailed()) {
+                    sendResponse(exchange, 400, results.toJson(false));
+                    return;
+                }
+                
+                CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
+                if (!foods.isEmpty()) {
+                    foodLock.readLock().lock();
+                    try {
+                        durable = repository.addFoods(foods);
+                    } finally {
+                        foodLock.readLock().unlock();
+                    }
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    for (FoodItem food : foods) {
+                        events.food("added", food);
+                        matcher.offer(food);
+                        expiry.schedule(food);
+                    }
+                    sendResponse(exchange, 200, results.toJson(true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class ListFoodHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                // ?status= (default available, "all" for any), donator=, receiver=, limit=, cursor=
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String status = query.getOrDefault("status", "available");
+                int limit;
+                long after;
+                try {
+                    limit = parseLimit(query.get("limit"));
+                    after = parseCursor(query.get("cursor"));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, 400, "{\"error\":\"Invalid limit or cursor\"}");
+                    return;
+                }
+                
+                String rawQuery = exchange.getRequestURI().getRawQuery();
+                long version = repository.foodVersion();
+                ListCache.Page cached = foodLists.get(rawQuery, version);
+                if (cached != null) {
+                    foodLists.send(exchange, cached);
+                    return;
+                }
+                
+                List<FoodItem> page = repository.findFoods("all".equals(status) ? null : status,
+                        query.get("donator"), query.get("receiver"), after, limit);
+                long next = page.size() == limit ? page.get(limit - 1).seq : -1;
+                if (!foodLists.keeps(page.size())) {
+                    foodLists.bypassed.increment();
+                    if (next >= 0) setNextCursor(exchange, next);
+                    try (JsonStreamWriter json = startJsonStream(exchange)) {
+                        write(json, page);
+                    }
+                    return;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + page.size() * 160);
+                try (JsonStreamWriter json = new JsonStreamWriter(bytes)) {
+                    write(json, page);
+                }
+                foodLists.send(exchange, foodLists.put(rawQuery, version, bytes.toByteArray(), next));
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+        
+        private static void write(JsonStreamWriter json, List<FoodItem> page) throws IOException {
+            json.beginArray();
+            for (FoodItem food : page) {
+                json.beginObject()
+                    .field("id", food.id)
+                    .field("donator", food.donator)
+                    .field("name", food.name)
+                    .field("quantity", food.quantity)
+                    .field("location", food.location)
+                    .field("status", food.status);
+                if (food.hasLocation()) {
+                    json.field("lat", food.lat).field("lon", food.lon);
+                }
+                if (food.perishable()) {
+                    json.field("expiresAt", Instant.ofEpochMilli(food.expiresAt).toString());
+                }
+                json.endObject();
+            }
+            json.endArray();
+        }
+    }
+    
+    // Closest available food with coordinates:
+    // ?lat=&lon= (required), radius= (km, default 5, at most 100), limit= (default 20, at most 1000)
+    static class NearbyFoodHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                double lat;
+                double lon;
+                double radius;
+                int limit;
+                try {
+                    lat = Double.parseDouble(query.get("lat"));
+                    lon = Double.parseDouble(query.get("lon"));
+                    radius = Double.parseDouble(query.getOrDefault("radius", "5"));
+                    limit = query.containsKey("limit") ? parseLimit(query.get("limit")) : 20;
+                } catch (NullPointerException | IllegalArgumentException e) {
+                    lat = Double.NaN;
+                    lon = radius = Double.NaN;
+                    limit = 0;
+                }
+                if (!FoodItem.validLocation(lat, lon) || !(radius > 0 && radius <= MAX_NEARBY_RADIUS_KM) ||
+                        limit < 1 || limit > MAX_NEARBY_LIMIT) {
+                    sendResponse(exchange, 400, "{\"error\":\"Invalid lat, lon, radius or limit\"}");
+                    return;
+                }
+                
+                List<GeoGrid.Nearby> nearby = repository.nearbyFood(lat, lon, radius, limit);
+                try (JsonStreamWriter json = startJsonStream(exchange)) {
+                    json.beginArray();
+                    for (GeoGrid.Nearby hit : nearby) {
+                        FoodItem food = hit.food;
+                        json.beginObject()
+                            .field("id", food.id)
+                            .field("donator", food.donator)
+                            .field("name", food.name)
+                            .field("quantity", food.quantity)
+                            .field("location", food.location)
+                            .field("status", food.status)
+                            .field("lat", food.lat)
+                            .field("lon", food.lon)
+                            .field("distanceKm", Math.round(hit.distanceKm * 1000) / 1000.0);
+                        if (food.perishable()) {
+                            json.field("expiresAt", Instant.ofEpochMilli(food.expiresAt).toString());
+                        }
+                        json.endObject();
+                    }
+                    json.endArray();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class ClaimFoodHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "foodId", "receiver");
+                if (!recordSafe(exchange, params)) return;
+                
+                String foodId = params.get("foodId");
+                String receiver = actAs(exchange, params.get("receiver"));
+                
+                CompletableFuture<Void> durable = null;
+                FoodItem food = null;
+                foodLock.readLock().lock();
+                try {
+                    food = repository.findFood(foodId);
+                    
+                    // Mark as claimed; the first claimer wins the compare-and-set
+                    if (food != null) {
+                        durable = repository.transitionFood(food, "available", "claimed", receiver);
+                    }
+                } finally {
+                    foodLock.readLock().unlock();
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 404, "{\"error\":\"Food not available\"}");
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    events.food("claimed", food);
+                    sendResponse(exchange, 200, "{\"success\":true}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    // POST /api/food/claim-batch: an array of /api/food/claim bodies. Claims that lose a race
+    // are reported and the rest go ahead. With ?atomic=true the batch holds foodLock
+    // exclusively, so either every item is still available and all are claimed, or none
+    // is and the response is 409.
+    static class ClaimFoodBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                List<Map<String, String>> items = parseBatch(exchange, "foodId", "receiver");
+                if (items == null) return;
+                boolean atomic = atomic(exchange);
+                
+                List<String> receivers = new ArrayList<>(items.size());
+                for (Map<String, String> params : items) {
+                    receivers.add(actAs(exchange, params.get("receiver")));
+                }
+                
+                BatchResults results = new BatchResults(items.size());
+                boolean[] claimed = new boolean[items.size()];
+                List<FoodItem> foods = new ArrayList<>(items.size());
+                CompletableFuture<Void> durable = null;
+                Lock lock = atomic ? foodLock.writeLock() : foodLock.readLock();
+                lock.lock();
+                try {
+                    Set<String> seen = new HashSet<>();
+                    for (Map<String, String> params : items) {
+                        FoodItem food = repository.findFood(params.get("foodId"));
+                        // The same item twice would lose to itself
+                        foods.add(food != null && seen.add(food.id) ? food : null);
+                    }
+                    if (atomic) {
+                        for (int i = 0; i < foods.size(); i++) {
+                            FoodItem food = foods.get(i);
+                            if (food == null || !"available".equals(food.status)) {
+                                results.failed(i, "Food not available");
+                            }
+                        }
+                    }
+                    if (!results.anyFailed()) {
+                        durable = repository.transitionFoods(foods, "available", "claimed", receivers, claimed);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 409, results.toJson(false));
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    for (int i = 0; i < claimed.length; i++) {
+                        if (claimed[i]) {
+                            events.food("claimed", foods.get(i));
+                            results.succeeded(i, foods.get(i).id);
+                        } else {
+                            results.failed(i, "Food not available");
+                        }
+                    }
+                    sendResponse(exchange, 200, results.toJson(true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class AddRequestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "receiver", "foodType", "quantity");
+                if (!recordSafe(exchange, params)) return;
+                
+                String receiver = actAs(exchange, params.get("receiver"));
+                String foodType = params.get("foodType");
+                String quantity = params.get("quantity");
+                
+                String id = UUID.randomUUID().toString().substring(0, 8);
+                DonationRequest request = new DonationRequest(id, receiver, foodType, quantity, "pending", null);
+                CompletableFuture<Void> durable;
+                requestLock.readLock().lock();
+                try {
+                    durable = repository.addRequest(request);
+                } finally {
+                    requestLock.readLock().unlock();
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    events.request("added", request);
+                    matcher.offer(request);
+                    sendResponse(exchange, 200, "{\"success\":true,\"id\":\"" + id + "\"}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    // POST /api/request/add-batch: an array of /api/request/add bodies, added under one lock
+    // acquisition with one append. Every well-formed item is valid, so ?atomic=true changes
+    // nothing here; it is accepted for symmetry with the other batch endpoints.
+    static class AddRequestBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                List<Map<String, String>> items = parseBatch(exchange, "receiver", "foodType", "quantity");
+                if (items == null) return;
+                
+                BatchResults results = new BatchResults(items.size());
+                List<DonationRequest> requests = new ArrayList<>(items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    Map<String, String> params = items.get(i);
+                    String id = UUID.randomUUID().toString().substring(0, 8);
+                    requests.add(new DonationRequest(id, actAs(exchange, params.get("receiver")),
+                            params.get("foodType"), params.get("quantity"), "pending", null));
+                    results.succeeded(i, id);
+                }
+                
+                CompletableFuture<Void> durable;
+                requestLock.readLock().lock();
+                try {
+                    durable = repository.addRequests(requests);
+                } finally {
+                    requestLock.readLock().unlock();
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    for (DonationRequest request : requests) {
+                        events.request("added", request);
+                        matcher.offer(request);
+                    }
+                    sendResponse(exchange, 200, results.toJson(true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class ListRequestsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                // ?status= (default all), receiver=, donator= (the fulfilling donor), limit=, cursor=
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String status = query.get("status");
+                int limit;
+                long after;
+                try {
+                    limit = parseLimit(query.get("limit"));
+                    after = parseCursor(query.get("cursor"));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, 400, "{\"error\":\"Invalid limit or cursor\"}");
+                    return;
+                }
+                
+                String rawQuery = exchange.getRequestURI().getRawQuery();
+                long version = repository.requestVersion();
+                ListCache.Page cached = requestLists.get(rawQuery, version);
+                if (cached != null) {
+                    requestLists.send(exchange, cached);
+                    return;
+                }
+                
+                List<DonationRequest> page = repository.findRequests("all".equals(status) ? null : status,
+                        query.get("receiver"), query.get("donator"), after, limit);
+                long next = page.size() == limit ? page.get(limit - 1).seq : -1;
+                if (!requestLists.keeps(page.size())) {
+                    requestLists.bypassed.increment();
+                    if (next >= 0) setNextCursor(exchange, next);
+                    try (JsonStreamWriter json = startJsonStream(exchange)) {
+                        write(json, page);
+                    }
+                    return;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + page.size() * 120);
+                try (JsonStreamWriter json = new JsonStreamWriter(bytes)) {
+                    write(json, page);
+                }
+                requestLists.send(exchange, requestLists.put(rawQuery, version, bytes.toByteArray(), next));
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+        
+        private static void write(JsonStreamWriter json, List<DonationRequest> page) throws IOException {
+            json.beginArray();
+            for (DonationRequest request : page) {
+                json.beginObject()
+                    .field("id", request.id)
+                    .field("receiver", request.receiver)
+                    .field("foodType", request.foodType)
+                    .field("quantity", request.quantity)
+                    .field("status", request.status)
+                    .endObject();
+            }
+            json.endArray();
+        }
+    }
+    
+    static class CancelRequestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "requestId", "receiver");
+                if (!recordSafe(exchange, params)) return;
+                
+                String requestId = params.get("requestId");
+                String receiver = actAs(exchange, params.get("receiver"));
+                
+                CompletableFuture<Void> durable = null;
+                DonationRequest request = null;
+                requestLock.readLock().lock();
+                try {
+                    request = repository.findRequest(requestId);
+                    
+                    if (request != null && request.receiver.equals(receiver)) {
+                        // Mark as cancelled
+                        durable = repository.transitionRequest(request, "pending", "cancelled", null);
+                    }
+                } finally {
+                    requestLock.readLock().unlock();
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 404, "{\"error\":\"Request not found or already processed\"}");
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    events.request("cancelled", request);
+                    sendResponse(exchange, 200, "{\"success\":true}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class DeleteRequestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "requestId", "receiver");
+                if (!recordSafe(exchange, params)) return;
+                
+                String requestId = params.get("requestId");
+                String receiver = actAs(exchange, params.get("receiver"));
+                
+                if (requestId == null || receiver == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
+                    return;
+                }
+                
+                CompletableFuture<Void> durable = null;
+                DonationRequest request = null;
+                requestLock.readLock().lock();
+                try {
+                    request = repository.findRequest(requestId);
+                    
+                    // Only delete if it matches ID and receiver
+                    if (request != null && request.receiver.equals(receiver)) {
+                        durable = repository.removeRequest(request);
+                    }
+                } finally {
+                    requestLock.readLock().unlock();
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 404, "{\"error\":\"Request not found\"}");
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    events.request("deleted", request);
+                    sendResponse(exchange, 200, "{\"success\":true}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    static class FulfillRequestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = JsonBodyParser.parse(exchange.getRequestBody(), 
+                        "requestId", "donor");
+                if (!recordSafe(exchange, params)) return;
+                
+                String requestId = params.get("requestId");
+                String donor = actAs(exchange, params.get("donor"));
+                
+                if (requestId == null || donor == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
+                    return;
+                }
+                
+                // Need to acquire locks in proper order to prevent deadlock
+                CompletableFuture<Void> durable = null;
+                DonationRequest request = null;
+                boolean requestAcquired = false;
+                try {
+                    requestAcquired = requestLock.readLock().tryLock(admission.maxQueueNanos, TimeUnit.NANOSECONDS);
+                    if (!requestAcquired) {
+                        sendBusy(exchange);
+                        return;
+                    }
+                    
+                    request = repository.findRequest(requestId);
+                    
+                    // Mark as fulfilled and add donor info; only one donor can win the transition
+                    if (request != null) {
+                        durable = repository.transitionRequest(request, "pending", "fulfilled", donor);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                    return;
+                } finally {
+                    if (requestAcquired) {
+                        requestLock.readLock().unlock();
+                    }
+                }
+                
+                if (durable == null) {
+                    sendResponse(exchange, 404, "{\"error\":\"Request not found or already processed\"}");
+                    return;
+                }
+                
+                try {
+                    awaitDurable(durable);
+                    events.request("fulfilled", request);
+                    sendResponse(exchange, 200, "{\"success\":true,\"message\":\"Request fulfilled successfully\"}");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                }
+            } catch (AuthException e) {
+                sendAuthError(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    // Archived records: ?type=food (default) or request, from= and to= (ISO-8601 or epoch
+    // millis, default the 7 days up to now), user= (either party), limit= (default 1000)
+    static class HistoryHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String type = query.getOrDefault("type", "food");
+                String user = query.get("user");
+                long to = query.containsKey("to") ? parseTime(query.get("to")) : System.currentTimeMillis();
+                long from = query.containsKey("from") ? parseTime(query.get("from")) : to - TimeUnit.DAYS.toMillis(7);
+                int limit;
+                try {
+                    limit = query.containsKey("limit") ? parseLimit(query.get("limit")) : 1000;
+                } catch (IllegalArgumentException e) {
+                    limit = 0;
+                }
+                if (!("food".equals(type) || "request".equals(type)) || from <= 0 || to <= from || limit < 1) {
+                    sendResponse(exchange, 400, "{\"error\":\"Invalid type, from, to or limit\"}");
+                    return;
+                }
+                
+                // Nothing has closed after now, and segment names only sort by date up to year
+                // 9999, so a later bound would match no segment at all (a from past it, nothing)
+                long end = Math.min(to, System.currentTimeMillis() + 1);
+                int max = limit;
+                int[] count = {0};
+                try (JsonStreamWriter json = startJsonStream(exchange)) {
+                    json.beginArray();
+                    archive.scan(type, from, end, (closedAt, record) -> {
+                        if ("food".equals(type)) {
+                            FoodItem food = FoodItem.parse(record);
+                            if (food == null || (user != null && !user.equals(food.donator) &&
+                                    !user.equals(food.receiver))) {
+                                return true;
+                            }
+                            json.beginObject()
+                                .field("id", food.id)
+                                .field("donator", food.donator)
+                                .field("name", food.name)
+                                .field("quantity", food.quantity)
+                                .field("location", food.location)
+                                .field("status", food.status);
+                            if (food.receiver != null) json.field("receiver", food.receiver);
+                            if (food.hasLocation()) json.field("lat", food.lat).field("lon", food.lon);
+                            if (food.perishable()) {
+                                json.field("expiresAt", Instant.ofEpochMilli(food.expiresAt).toString());
+                            }
+                        } else {
+                            DonationRequest request = DonationRequest.parse(record);
+                            if (request == null || (user != null && !user.equals(request.receiver) &&
+                                    !user.equals(request.donor))) {
+                                return true;
+                            }
+                            json.beginObject()
+                                .field("id", request.id)
+                                .field("receiver", request.receiver)
+                                .field("foodType", request.foodType)
+                                .field("quantity", request.quantity)
+                                .field("status", request.status);
+                            if (request.donor != null) json.field("donor", request.donor);
+                        }
+                        json.field("closedAt", Instant.ofEpochMilli(closedAt).toString()).endObject();
+                        return ++count[0] < max;
+                    });
+                    json.endArray();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+    
+    // Live totals from Repository.stats; nothing is scanned
+    static class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            
+            try {
+                Stats stats = repository.stats;
+                long[] latency = stats.claimLatency.snapshot();
+                long claims = 0;
+                for (long count : latency) claims += count;
+                
+                try (JsonStreamWriter json = startJsonStream(exchange)) {
+                    json.beginObject()
+                        .field("availableFood", stats.available.sum())
+                        .field("pendingRequests", stats.pending.sum())
+                        .field("fulfilledRequests", stats.fulfilled.sum());
+                    write(json, "availableFoodByLocation", stats.availableByLocation);
+                    write(json, "pendingRequestsByFoodType", stats.pendingByFoodType);
+                    write(json, "fulfillmentsByDonor", stats.fulfilledByDonor);
+                    json.beginObject("claimLatencyMs")
+                        .field("count", claims)
+                        .field("mean", claims == 0 ? 0 : stats.claimLatency.sum() / claims)
+                        .field("p50", LatencyHistogram.quantile(latency, 0.5))
+                        .field("p90", LatencyHistogram.quantile(latency, 0.9))
+                        .field("p99", LatencyHistogram.quantile(latency, 0.99))
+                        .endObject();
+                    json.endObject();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+        
+        private static void write(JsonStreamWriter json, String name, Stats.Table table) throws IOException {
+            json.beginObject(name);
+            for (Map.Entry<String, Long> entry : table.snapshot().entrySet()) {
+                json.field(entry.getKey(), entry.getValue());
+            }
+            json.endObject();
+        }
+    }
+    
+    // Replica side: passes the exchange to the primary and relays its answer, streamed as it
+    // arrives so /api/events works through a replica too. Tokens travel in the forwarded
+    // Authorization header, so the primary acts as the same user.
+    static class ForwardingHandler implements HttpHandler {
+        private static final List<String> REQUEST_HEADERS = Arrays.asList("Authorization", "Content-Type",
+                "Accept", "Accept-Encoding", "If-None-Match", "Last-Event-ID");
+        // Set by HttpServer itself from sendResponseHeaders
+        private static final List<String> RESPONSE_HEADERS_SKIPPED = Arrays.asList("content-length",
+                "transfer-encoding", "connection", "date", ":status");
+        private static final HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        
+        private final Replica replica;
+        
+        ForwardingHandler(Replica replica) {
+            this.replica = replica;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String primary = replica.primaryUrl;
+            if (primary == null) {
+                sendResponse(exchange, 503, "{\"error\":\"Primary unavailable\"}");
+                return;
+            }
+            
+            HttpResponse<InputStream> response;
+            try {
+                byte[] body = exchange.getRequestBody().readAllBytes();
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(primary + exchange.getRequestURI()))
+                        .method(exchange.getRequestMethod(), body.length == 0
+                                ? HttpRequest.BodyPublishers.noBody()
+                                : HttpRequest.BodyPublishers.ofByteArray(body));
+                for (String name : REQUEST_HEADERS) {
+                    String value = exchange.getRequestHeaders().getFirst(name);
+                    if (value != null) request.header(name, value);
+                }
+                response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                return;
+            } catch (IOException e) {
+                sendResponse(exchange, 503, "{\"error\":\"Primary unavailable\"}");
+                return;
+            }
+            
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                if (!RESPONSE_HEADERS_SKIPPED.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                    exchange.getResponseHeaders().put(header.getKey(), header.getValue());
+                }
+            }
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+            boolean empty = response.statusCode() == 204 || response.statusCode() == 304 ||
+                    "HEAD".equals(exchange.getRequestMethod()) ||
+                    (length == 0 && response.headers().firstValue("Content-Length").isPresent());
+            exchange.sendResponseHeaders(response.statusCode(), empty ? -1 : length);
+            try (InputStream in = response.body(); OutputStream out = exchange.getResponseBody()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+        }
+    }
+    
+    static class EventsHandler implements HttpHandler {
+        @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
                 sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
                 return;
             }
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String foodId = params.get("foodId");
-                String receiver = params.get("receiver");
-                
-                foodLock.writeLock().lock();
-                try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> foods = Files.readAllLines(Paths.get(FOOD_FILE));
-                        List<String> updatedFoods = new ArrayList<>();
-                        boolean found = false;
-                        
-                        for (String food : foods) {
-                            String[] parts = food.split("\\|");
-                            if (parts[0].equals(foodId) && "available".equals(parts[5])) {
-                                // Mark as claimed
-                                updatedFoods.add(parts[0] + "|" + parts[1] + "|" + parts[2] + 
-                                            "|" + parts[3] + "|" + parts[4] + "|claimed|" + receiver);
-                                found = true;
-                            } else {
-                                updatedFoods.add(food);
-                            }
-                        }
-                        
-                        if (found) {
-                            Files.write(Paths.get(FOOD_FILE), 
-                                    String.join("\n", updatedFoods).getBytes());
-                            sendResponse(exchange, 200, "{\"success\":true}");
-                        } else {
-                            sendResponse(exchange, 404, "{\"error\":\"Food not available\"}");
-                        }
-                    } finally {
-                        fileSemaphore.release();
+            // EventSource sends Last-Event-ID when it reconnects; the query form is for manual resumes
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (lastEventId == null) {
+                lastEventId = parseQuery(exchange.getRequestURI().getRawQuery()).get("lastEventId");
+            }
+            
+            // Returns straight away; the exchange stays open and EventBus writes to it until the
+            // client disconnects, so a subscriber doesn't hold one of the request threads
+            events.subscribe(exchange, lastEventId);
+        }
+    }
+    
+    /**
+     * Pairs each new food item with the oldest pending request of the same kind, and each new
+     * request with the oldest available food of that kind (see Repository.kind). Handlers offer
+     * records once they are durable and a single "matcher" thread does the rest, so matching
+     * never holds up a response. Candidates come from per-kind indexes that hold only open
+     * records, in sequence order, so finding one is a skip-list head lookup however long the
+     * backlog grows.
+     */
+    static class MatchingEngine {
+        enum Mode { OFF, PROPOSE, COMMIT }
+        
+        // Records handled per round; their writes share a single wait for the disk
+        private static final int BATCH = 256;
+        
+        final Mode mode;
+        final LongAdder proposed = new LongAdder();
+        final LongAdder committed = new LongAdder();
+        // Commits abandoned because a client claimed or fulfilled one side first
+        final LongAdder conflicts = new LongAdder();
+        private final BlockingQueue<Object> arrivals = new LinkedBlockingQueue<>();
+        private final Thread thread = new Thread(this::run, "matcher");
+        
+        static class Match {
+            final FoodItem food;
+            final DonationRequest request;
+            // Null for a proposal
+            final CompletableFuture<Void> durable;
+            
+            Match(FoodItem food, DonationRequest request, CompletableFuture<Void> durable) {
+                this.food = food;
+                this.request = request;
+                this.durable = durable;
+            }
+        }
+        
+        MatchingEngine(Mode mode) {
+            this.mode = mode;
+            thread.setDaemon(true);
+        }
+        
+        void start() {
+            if (mode != Mode.OFF) thread.start();
+        }
+        
+        // A FoodItem or DonationRequest that was just added
+        void offer(Object record) {
+            if (mode != Mode.OFF) arrivals.add(record);
+        }
+        
+        int backlog() {
+            return arrivals.size();
+        }
+        
+        private void run() {
+            List<Object> batch = new ArrayList<>(BATCH);
+            List<Match> matches = new ArrayList<>(BATCH);
+            try {
+                while (true) {
+                    batch.add(arrivals.take());
+                    arrivals.drainTo(batch, BATCH - 1);
+                    for (Object record : batch) {
+                        Match match = record instanceof FoodItem
+                                ? match((FoodItem) record) : match((DonationRequest) record);
+                        if (match != null) matches.add(match);
+                    }
+                    for (Match match : matches) {
+                        try {
+                            announce(match);
+                        } catch (IOException e) {
+                            System.err.println("Match " + match.food.id + "/" + match.request.id +
+                                    " failed: " + e.getMessage());
+                        }
+                    }
+                    batch.clear();
+                    matches.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void announce(Match match) throws IOException, InterruptedException {
+            if (match.durable == null) {
+                events.match("proposed", match.food, match.request);
+                return;
+            }
+            awaitDurable(match.durable);
+            events.food("claimed", match.food);
+            events.request("fulfilled", match.request);
+            events.match("committed", match.food, match.request);
+        }
+        
+        Match match(FoodItem food) {
+            long now = System.currentTimeMillis();
+            for (DonationRequest request : repository.pendingRequests(Repository.kind(food.name))) {
+                if (!"available".equals(food.status) || food.expiredBy(now)) return null;
+                if (!"pending".equals(request.status)) continue;
+                Match match = pair(food, request);
+                if (match != null || !"available".equals(food.status)) return match;
+            }
+            return null;
+        }
+        
+        Match match(DonationRequest request) {
+            long now = System.currentTimeMillis();
+            for (FoodItem food : repository.availableFood(Repository.kind(request.foodType))) {
+                if (!"pending".equals(request.status)) return null;
+                if (!"available".equals(food.status) || food.expiredBy(now)) continue;
+                Match match = pair(food, request);
+                if (match != null || !"pending".equals(request.status)) return match;
+            }
+            return null;
+        }
+        
+        // Claims the food for the receiver, then fulfills the request with the food's donator.
+        // If a client fulfilled or cancelled the request in between, the claim is handed back.
+        private Match pair(FoodItem food, DonationRequest request) {
+            if (mode == Mode.PROPOSE) {
+                proposed.increment();
+                return new Match(food, request, null);
+            }
+            foodLock.readLock().lock();
+            try {
+                requestLock.readLock().lock();
+                try {
+                    CompletableFuture<Void> claimed =
+                            repository.transitionFood(food, "available", "claimed", request.receiver);
+                    if (claimed == null) {
+                        conflicts.increment();
+                        return null;
+                    }
+                    CompletableFuture<Void> fulfilled =
+                            repository.transitionRequest(request, "pending", "fulfilled", food.donator);
+                    if (fulfilled == null) {
+                        // The expiry thread skipped it while claimed, so expire it here if it is due
+                        repository.transitionFood(food, "claimed",
+                                food.expiredBy(System.currentTimeMillis()) ? "expired" : "available", null);
+                        conflicts.increment();
+                        return null;
+                    }
+                    committed.increment();
+                    return new Match(food, request, CompletableFuture.allOf(claimed, fulfilled));
+                } finally {
+                    requestLock.readLock().unlock();
+                }
+            } finally {
+                foodLock.readLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * Expires perishable food without touching the request path: adding an item only puts it
+     * in a DelayQueue. The "food-expiry" thread sleeps until the earliest expiresAt, then
+     * takes everything due by then as one batch, so items that expire together share one
+     * group commit. Items claimed before their time are left alone. Expired items are
+     * archived like claimed ones, ARCHIVE_AFTER_MS later.
+     */
+    static class ExpiryScheduler {
+        private static final int BATCH = 1024;
+        
+        final LongAdder expired = new LongAdder();
+        private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+        private final Thread thread = new Thread(this::run, "food-expiry");
+        
+        private static class Deadline implements Delayed {
+            final FoodItem food;
+            
+            Deadline(FoodItem food) {
+                this.food = food;
+            }
+            
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(food.expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+            
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(food.expiresAt, ((Deadline) other).food.expiresAt);
+            }
+        }
+        
+        ExpiryScheduler() {
+            thread.setDaemon(true);
+        }
+        
+        // Schedules everything loaded from disk, including items already past due
+        void start(Collection<FoodItem> foods) {
+            for (FoodItem food : foods) {
+                if (food.perishable()) deadlines.add(new Deadline(food));
+            }
+            thread.start();
+        }
+        
+        void schedule(FoodItem food) {
+            if (food.perishable()) deadlines.add(new Deadline(food));
+        }
+        
+        int scheduled() {
+            return deadlines.size();
+        }
+        
+        private void run() {
+            List<Deadline> batch = new ArrayList<>(BATCH);
+            List<FoodItem> foods = new ArrayList<>(BATCH);
+            List<FoodItem> changed = new ArrayList<>(BATCH);
+            try {
+                while (true) {
+                    batch.add(deadlines.take());
+                    deadlines.drainTo(batch, BATCH - 1);
+                    for (Deadline deadline : batch) {
+                        foods.add(deadline.food);
+                    }
+                    // One write for the whole batch, as claim-batch does, in every persistence mode
+                    boolean[] moved = new boolean[foods.size()];
+                    CompletableFuture<Void> durable;
+                    foodLock.readLock().lock();
+                    try {
+                        durable = repository.transitionFoods(foods, "available", "expired",
+                                Collections.nCopies(foods.size(), null), moved);
+                    } finally {
+                        foodLock.readLock().unlock();
+                    }
+                    for (int i = 0; i < moved.length; i++) {
+                        if (moved[i]) changed.add(foods.get(i));
+                    }
+                    try {
+                        awaitDurable(durable);
+                        expired.add(changed.size());
+                        for (FoodItem food : changed) {
+                            events.food("expired", food);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Expiring " + changed.size() + " food items failed: " + e.getMessage());
+                    }
+                    batch.clear();
+                    foods.clear();
+                    changed.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Server-Sent Events feed of food and request changes. Handlers publish once their change is
+     * durable; each event is encoded once into an SSE frame and queued to every subscriber. A
+     * subscriber's queue is drained by its own delivery task, so a slow client delays only itself,
+     * and one that falls more than MAX_PENDING events behind is disconnected (EventSource then
+     * reconnects and resumes from the history). Events carry the record's state at publish time,
+     * so the last event a client sees for an id is always current even if two publishes race.
+     */
+    static class EventBus {
+        private static final int HISTORY = 1024;
+        private static final int MAX_PENDING = 1024;
+        private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.US_ASCII);
+        
+        private final long heartbeatMs;
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        // Guards lastId and history, so ids reach every queue in order and a subscriber that
+        // registers during a publish neither misses nor repeats that event
+        private final ReentrantLock publishLock = new ReentrantLock();
+        private final ArrayDeque<Event> history = new ArrayDeque<>();
+        private long lastId;
+        private final ExecutorService delivery = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "event-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        EventBus(long heartbeatMs) {
+            this.heartbeatMs = heartbeatMs;
+        }
+        
+        int subscriberCount() {
+            return subscribers.size();
+        }
+        
+        void start() {
+            Thread heartbeat = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(heartbeatMs);
+                        for (Subscriber subscriber : subscribers) {
+                            subscriber.send(HEARTBEAT);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "event-heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+        }
+        
+        void food(String change, FoodItem food) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(192);
+            try (JsonStreamWriter json = new JsonStreamWriter(data)) {
+                json.beginObject()
+                        .field("change", change)
+                        .field("id", food.id)
+                        .field("donator", food.donator)
+                        .field("name", food.name)
+                        .field("quantity", food.quantity)
+                        .field("location", food.location)
+                        .field("status", food.status);
+                String receiver = food.receiver;
+                if (receiver != null) json.field("receiver", receiver);
+                if (food.hasLocation()) json.field("lat", food.lat).field("lon", food.lon);
+                if (food.perishable()) json.field("expiresAt", Instant.ofEpochMilli(food.expiresAt).toString());
+                json.endObject();
+            }
+            publish("food", data.toByteArray());
+        }
+        
+        void request(String change, DonationRequest request) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(160);
+            try (JsonStreamWriter json = new JsonStreamWriter(data)) {
+                json.beginObject()
+                        .field("change", change)
+                        .field("id", request.id)
+                        .field("receiver", request.receiver)
+                        .field("foodType", request.foodType)
+                        .field("quantity", request.quantity)
+                        .field("status", request.status);
+                String donor = request.donor;
+                if (donor != null) json.field("donor", donor);
+                json.endObject();
+            }
+            publish("request", data.toByteArray());
+        }
+        
+        void match(String change, FoodItem food, DonationRequest request) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(160);
+            try (JsonStreamWriter json = new JsonStreamWriter(data)) {
+                json.beginObject()
+                        .field("change", change)
+                        .field("foodId", food.id)
+                        .field("requestId", request.id)
+                        .field("donator", food.donator)
+                        .field("receiver", request.receiver)
+                        .field("name", food.name)
+                        .field("foodType", request.foodType)
+                        .endObject();
+            }
+            publish("match", data.toByteArray());
+        }
+        
+        private void publish(String type, byte[] data) {
+            publishLock.lock();
+            try {
+                long id = ++lastId;
+                byte[] frame = frame(id, type, data);
+                history.addLast(new Event(id, frame));
+                if (history.size() > HISTORY) history.removeFirst();
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.send(frame);
+                }
+            } finally {
+                publishLock.unlock();
+            }
+        }
+        
+        void subscribe(HttpExchange exchange, String lastEventId) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+            
+            Subscriber subscriber = new Subscriber(exchange);
+            publishLock.lock();
+            try {
+                subscriber.send("retry: 2000\n\n".getBytes(StandardCharsets.US_ASCII));
+                if (lastEventId != null) {
+                    replay(subscriber, lastEventId);
+                }
+                subscribers.add(subscriber);
+            } finally {
+                publishLock.unlock();
+            }
+        }
+        
+        // Sends what the client missed, or a "reset" event telling it to reload its lists when the
+        // gap is no longer in the history (or the id is from before a restart)
+        private void replay(Subscriber subscriber, String lastEventId) {
+            long last;
+            try {
+                last = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                last = -1;
+            }
+            long oldest = history.isEmpty() ? lastId + 1 : history.peekFirst().id;
+            if (last < oldest - 1 || last > lastId) {
+                subscriber.send(frame(lastId, "reset", "{}".getBytes(StandardCharsets.US_ASCII)));
+                return;
+            }
+            for (Event event : history) {
+                if (event.id > last) subscriber.send(event.frame);
+            }
+        }
+        
+        private static byte[] frame(long id, String type, byte[] data) {
+            byte[] head = ("id: " + id + "\nevent: " + type + "\ndata: ").getBytes(StandardCharsets.US_ASCII);
+            byte[] frame = Arrays.copyOf(head, head.length + data.length + 2);
+            System.arraycopy(data, 0, frame, head.length, data.length);
+            frame[frame.length - 2] = '\n';
+            frame[frame.length - 1] = '\n';
+            return frame;
+        }
+        
+        static class Event {
+            final long id;
+            final byte[] frame;
+            
+            Event(long id, byte[] frame) {
+                this.id = id;
+                this.frame = frame;
+            }
+        }
+        
+        class Subscriber implements Runnable {
+            private final HttpExchange exchange;
+            private final OutputStream out;
+            private final BlockingQueue<byte[]> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+            private final AtomicBoolean scheduled = new AtomicBoolean();
+            private volatile boolean closed;
+            
+            Subscriber(HttpExchange exchange) {
+                this.exchange = exchange;
+                this.out = exchange.getResponseBody();
+            }
+            
+            // Never blocks: called with publishLock held
+            void send(byte[] frame) {
+                if (closed) return;
+                if (!pending.offer(frame)) {
+                    closed = true;
+                    subscribers.remove(this);
+                }
+                if (scheduled.compareAndSet(false, true)) {
+                    delivery.execute(this);
+                }
+            }
+            
+            @Override
+            public void run() {
+                try {
+                    do {
+                        byte[] frame;
+                        while (!closed && (frame = pending.poll()) != null) {
+                            out.write(frame);
+                        }
+                        if (closed) break;
+                        out.flush();
+                        scheduled.set(false);
+                    } while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+                } catch (IOException e) {
+                    // Client went away
+                    closed = true;
+                    subscribers.remove(this);
+                }
+                if (closed) {
+                    pending.clear();
+                    exchange.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Primary side of replication. Every change the repository makes becomes one line carrying
+     * the record's whole current state (or its removal), queued for each connected replica, so a
+     * replica that applies the lines in order holds the primary's records. A replica is
+     * registered first and then sent every record, followed by whatever was queued meanwhile.
+     * Each line is built under publishLock after its change, from the record as it is then, so
+     * the last line about any record always carries its latest state, whichever order racing
+     * changes were published in. A replica whose queue fills is cut off and gets a fresh copy
+     * when it reconnects.
+     *
+     * <p>The stream is UTF-8 lines "type seq millis [payload]": P (first, payload-less: the
+     * primary's HTTP port in place of seq), B and E around the initial copy, F and R a food or
+     * request as "recordSeq record", f and r a removed id, and H a heartbeat while idle. seq
+     * counts published lines and millis is the primary's clock when the line was published.
+     */
+    static class ReplicationLog {
+        private static final long HEARTBEAT_MS = 1000;
+        
+        private final String host;
+        private final int port;
+        private final int queueLimit;
+        private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+        // Orders lines into every queue and guards seq
+        private final ReentrantLock publishLock = new ReentrantLock();
+        private long seq;
+        private volatile long lastSeq;
+        private ServerSocket serverSocket;
+        final LongAdder lines = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        
+        ReplicationLog(String host, int port, int queueLimit) {
+            this.host = host;
+            this.port = port;
+            this.queueLimit = queueLimit;
+        }
+        
+        // One connected replica and the lines waiting to be sent to it
+        class Follower {
+            final String name;
+            private final Socket socket;
+            final BlockingQueue<String> queue = new LinkedBlockingQueue<>(queueLimit);
+            
+            Follower(Socket socket) {
+                this.socket = socket;
+                this.name = socket.getRemoteSocketAddress().toString();
+            }
+            
+            void offer(String line) {
+                if (!queue.offer(line)) {
+                    System.err.println("Replica " + name + " fell " + queueLimit + " lines behind; disconnecting it");
+                    dropped.increment();
+                    close();
+                }
+            }
+            
+            void close() {
+                followers.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            
+            void run(Repository repository, int httpPort) {
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8), 64 * 1024)) {
+                    socket.setTcpNoDelay(true);
+                    long start;
+                    publishLock.lock();
+                    try {
+                        followers.add(this);
+                        start = seq;
+                    } finally {
+                        publishLock.unlock();
+                    }
+                    
+                    String prefix = start + " " + System.currentTimeMillis();
+                    out.write("P " + httpPort + "\n");
+                    out.write("B " + prefix + "\n");
+                    int records = 0;
+                    for (FoodItem food : repository.foods()) {
+                        out.write("F " + prefix + " " + food.seq + " " + food.toRecord() + "\n");
+                        records++;
+                    }
+                    for (DonationRequest request : repository.requests()) {
+                        out.write("R " + prefix + " " + request.seq + " " + request.toRecord() + "\n");
+                        records++;
+                    }
+                    out.write("E " + prefix + "\n");
+                    out.flush();
+                    System.out.println("Replica " + name + " connected; sent " + records + " records");
+                    
+                    while (followers.contains(this)) {
+                        String line = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                        if (line == null) {
+                            out.write("H " + lastSeq + " " + System.currentTimeMillis() + "\n");
+                        } else {
+                            // Whatever else is queued goes out in the same flush
+                            do {
+                                out.write(line);
+                                lines.increment();
+                            } while ((line = queue.poll()) != null);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Replica " + name + " disconnected: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    close();
+                }
+            }
+        }
+        
+        void start(Repository repository, int httpPort) throws IOException {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(host, port));
+            repository.replicateTo(this);
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Follower follower = new Follower(serverSocket.accept());
+                        Thread sender = new Thread(() -> follower.run(repository, httpPort),
+                                "replication-" + follower.name);
+                        sender.setDaemon(true);
+                        sender.start();
+                    } catch (IOException e) {
+                        System.err.println("Accepting a replica failed: " + e.getMessage());
+                    }
+                }
+            }, "replication-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+        
+        Collection<Follower> followers() {
+            return followers;
+        }
+        
+        void food(FoodItem food) {
+            if (!followers.isEmpty()) publish('F', () -> food.seq + " " + food.toRecord());
+        }
+        
+        void request(DonationRequest request) {
+            if (!followers.isEmpty()) publish('R', () -> request.seq + " " + request.toRecord());
+        }
+        
+        void removeFood(FoodItem food) {
+            if (!followers.isEmpty()) publish('f', () -> food.id);
+        }
+        
+        void removeRequest(DonationRequest request) {
+            if (!followers.isEmpty()) publish('r', () -> request.id);
+        }
+        
+        // An empty follower set needs no lock: a replica registering later reads the record
+        // after this change anyway, in its initial copy
+        private void publish(char type, Supplier<String> payload) {
+            publishLock.lock();
+            try {
+                String line = type + " " + ++seq + " " + System.currentTimeMillis() + " " + payload.get() + "\n";
+                lastSeq = seq;
+                for (Follower follower : followers) {
+                    follower.offer(line);
+                }
+            } finally {
+                publishLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Replica side of replication: follows a primary's ReplicationLog and applies it to this
+     * server's repository, reconnecting every RETRY_MS while the primary is away. Records the
+     * primary no longer has when a fresh copy arrives are dropped at its end, so a reconnect
+     * never empties the lists in between.
+     */
+    static class Replica {
+        private static final long RETRY_MS = 1000;
+        // Several missed heartbeats mean the primary or the link is gone
+        private static final int READ_TIMEOUT_MS = 10_000;
+        
+        final String host;
+        final int port;
+        private final CountDownLatch ready = new CountDownLatch(1);
+        volatile boolean connected;
+        // Where writes are forwarded, from the primary's P line
+        volatile String primaryUrl;
+        final LongAdder applied = new LongAdder();
+        // Newest seq seen from the primary, and of the last change applied
+        volatile long primarySeq;
+        volatile long appliedSeq;
+        // Time from the primary publishing the last applied change to its being applied
+        volatile long lagMillis;
+        volatile long lastContact;
+        
+        Replica(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 1) throw new IllegalArgumentException("fds.replicaOf must be host:port: " + address);
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+        
+        void start(Repository repository) {
+            Thread receiver = new Thread(() -> {
+                while (true) {
+                    try {
+                        follow(repository);
+                    } catch (IOException | RuntimeException e) {
+                        if (connected) System.err.println("Lost primary " + host + ":" + port + ": " + e.getMessage());
+                    } finally {
+                        connected = false;
+                    }
+                    try {
+                        Thread.sleep(RETRY_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }, "replication-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        
+        // Blocks until the first full copy has arrived
+        void awaitReady() throws InterruptedException {
+            ready.await();
+        }
+        
+        private void follow(Repository repository) throws IOException {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), READ_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8), 64 * 1024);
+                // Ids held before the copy now arriving, less those it contains
+                Set<String> staleFood = null;
+                Set<String> staleRequests = null;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.currentTimeMillis();
+                    lastContact = now;
+                    char type = line.charAt(0);
+                    int first = line.indexOf(' ', 2);
+                    if (type == 'P') {
+                        primaryUrl = "http://" + host + ":" + line.substring(2);
+                        continue;
+                    }
+                    int second = line.indexOf(' ', first + 1);
+                    long seq = Long.parseLong(line.substring(2, first));
+                    long millis = Long.parseLong(second < 0 ? line.substring(first + 1) : line.substring(first + 1, second));
+                    String payload = second < 0 ? null : line.substring(second + 1);
+                    // A fresh copy may come from a restarted primary, counting from scratch
+                    primarySeq = type == 'B' ? seq : Math.max(primarySeq, seq);
+                    
+                    switch (type) {
+                        case 'B':
+                            staleFood = repository.foodIds();
+                            staleRequests = repository.requestIds();
+                            continue;
+                        case 'E':
+                            for (String id : staleFood) repository.dropFood(id);
+                            for (String id : staleRequests) repository.dropRequest(id);
+                            staleFood = staleRequests = null;
+                            appliedSeq = seq;
+                            connected = true;
+                            ready.countDown();
+                            System.out.println("Replicating from " + host + ":" + port + " (" +
+                                    repository.foods().size() + " food items, " + repository.requests().size() + " requests)");
+                            continue;
+                        case 'H':
+                            continue;
+                        case 'F':
+                        case 'R': {
+                            int space = payload.indexOf(' ');
+                            long recordSeq = Long.parseLong(payload.substring(0, space));
+                            String record = payload.substring(space + 1);
+                            if (type == 'F') {
+                                FoodItem food = FoodItem.parse(record);
+                                if (food == null) continue;
+                                if (staleFood != null) staleFood.remove(food.id);
+                                repository.applyFood(food, recordSeq);
+                            } else {
+                                DonationRequest request = DonationRequest.parse(record);
+                                if (request == null) continue;
+                                if (staleRequests != null) staleRequests.remove(request.id);
+                                repository.applyRequest(request, recordSeq);
+                            }
+                            break;
+                        }
+                        case 'f':
+                            repository.dropFood(payload);
+                            break;
+                        case 'r':
+                            repository.dropRequest(payload);
+                            break;
+                        default:
+                            throw new IOException("Unexpected replication line: " + line);
+                    }
+                    if (staleFood == null) {
+                        appliedSeq = seq;
+                        applied.increment();
+                        lagMillis = now - millis;
+                    }
+                }
+                throw new EOFException("Primary closed the connection");
+            }
+        }
+    }
+    
+    /**
+     * Adaptive concurrency limits, separate for reads and writes so a burst of one can't starve
+     * the other. Each Budget is AIMD over handler latency: every response within the budget's
+     * target while the budget is at least half used raises its limit by 1/limit (about one per
+     * limit's worth of responses), and a slower one cuts it by a tenth, at most once per target
+     * interval. Requests over the limit are refused at once rather than queued, as are requests
+     * that already spent maxQueueNanos waiting for an executor thread, which timed() measures.
+     */
+    static class AdmissionControl {
+        // When the executor accepted the exchange being handled on this thread
+        private static final ThreadLocal<long[]> ACCEPTED = ThreadLocal.withInitial(() -> new long[1]);
+        
+        final boolean enabled;
+        final long maxQueueNanos;
+        final Budget reads;
+        final Budget writes;
+        
+        static class Budget {
+            private static final double BACKOFF = 0.9;
+            
+            final String name;
+            private final int maxLimit;
+            private final long targetNanos;
+            private final AtomicInteger inFlight = new AtomicInteger();
+            // The limit as double bits, so additive increases below 1 accumulate
+            private final AtomicLong limit;
+            private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+            final LongAdder overLimit = new LongAdder();
+            final LongAdder queuedTooLong = new LongAdder();
+            final LatencyHistogram queueTime = new LatencyHistogram();
+            
+            Budget(String name, int maxLimit, long targetNanos) {
+                this.name = name;
+                this.maxLimit = maxLimit;
+                this.targetNanos = targetNanos;
+                this.limit = new AtomicLong(Double.doubleToLongBits(Math.max(1, maxLimit / 4)));
+            }
+            
+            int limit() {
+                return (int) Double.longBitsToDouble(limit.get());
+            }
+            
+            int inFlight() {
+                return inFlight.get();
+            }
+            
+            boolean tryAcquire() {
+                int max = limit();
+                while (true) {
+                    int current = inFlight.get();
+                    if (current >= max) return false;
+                    if (inFlight.compareAndSet(current, current + 1)) return true;
+                }
+            }
+            
+            void release(long latencyNanos) {
+                int inUse = inFlight.getAndDecrement();
+                long now = System.nanoTime();
+                while (true) {
+                    long bits = limit.get();
+                    double current = Double.longBitsToDouble(bits);
+                    double next;
+                    if (latencyNanos > targetNanos) {
+                        long last = lastDecrease.get();
+                        if (now - last < targetNanos || !lastDecrease.compareAndSet(last, now)) return;
+                        next = Math.max(1, current * BACKOFF);
+                    } else if (inUse * 2 >= current) {
+                        next = Math.min(maxLimit, current + 1 / current);
+                    } else {
+                        return;
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                    if (limit.compareAndSet(bits, Double.doubleToLongBits(next))) return;
+                }
+            }
+        }
+        
+        AdmissionControl(boolean enabled, long maxQueueNanos, Budget reads, Budget writes) {
+            this.enabled = enabled;
+            this.maxQueueNanos = maxQueueNanos;
+            this.reads = reads;
+            this.writes = writes;
+        }
+        
+        // Stamps each task with the time it was handed to the executor
+        Executor timed(Executor executor) {
+            return task -> {
+                long accepted = System.nanoTime();
+                executor.execute(() -> {
+                    ACCEPTED.get()[0] = accepted;
+                    task.run();
+                });
+            };
+        }
+        
+        HttpHandler guard(HttpHandler handler) {
+            if (!enabled) return handler;
+            return exchange -> {
+                String method = exchange.getRequestMethod();
+                Budget budget = "GET".equals(method) || "HEAD".equals(method) ? reads : writes;
+                long start = System.nanoTime();
+                long accepted = ACCEPTED.get()[0];
+                long queued = accepted == 0 ? 0 : start - accepted;
+                budget.queueTime.record(queued);
+                if (queued > maxQueueNanos) {
+                    budget.queuedTooLong.increment();
+                    sendBusy(exchange);
+                    return;
+                }
+                if (!budget.tryAcquire()) {
+                    budget.overLimit.increment();
+                    sendBusy(exchange);
+                    return;
+                }
+                try {
+                    handler.handle(exchange);
                 } finally {
-                    foodLock.writeLock().unlock();
+                    budget.release(System.nanoTime() - start);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            };
+        }
+    }
+    
+    // Wraps every context: counts responses by status code and records how long handle() took
+    static class InstrumentedHandler implements HttpHandler {
+        private final Metrics.ContextStats stats;
+        private final HttpHandler delegate;
+        
+        InstrumentedHandler(Metrics.ContextStats stats, HttpHandler delegate) {
+            this.stats = stats;
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            stats.inFlight.increment();
+            try {
+                delegate.handle(exchange);
+            } finally {
+                stats.inFlight.decrement();
+                stats.latency.record(System.nanoTime() - start);
+                stats.responded(exchange.getResponseCode());
             }
         }
     }
     
-    static class AddRequestHandler implements HttpHandler {
+    static class MetricsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
                 sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
                 return;
             }
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String receiver = params.get("receiver");
-                String foodType = params.get("foodType");
-                String quantity = params.get("quantity");
-                
-                requestLock.writeLock().lock();
-                try {
-                    fileSemaphore.acquire();
-                    try {
-                        String id = UUID.randomUUID().toString().substring(0, 8);
-                        String requestRecord = id + "|" + receiver + "|" + foodType + "|" + 
-                                            quantity + "|pending\n";
-                        
-                        Files.write(Paths.get(REQUESTS_FILE), requestRecord.getBytes(), 
-                                StandardOpenOption.APPEND);
-                        
-                        sendResponse(exchange, 200, "{\"success\":true,\"id\":\"" + id + "\"}");
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    requestLock.writeLock().unlock();
+            StringBuilder out = new StringBuilder(16 * 1024);
+            metrics.writeTo(out);
+            
+            List<ReentrantReadWriteLock> locks = Arrays.asList(userLock, foodLock, requestLock);
+            boolean first = true;
+            for (ReentrantReadWriteLock lock : locks) {
+                TimedReadWriteLock timed = (TimedReadWriteLock) lock;
+                String labels = "lock=\"" + timed.name + "\"";
+                Metrics.histogram(out, "fds_lock_wait_seconds", first ? "Time spent waiting to acquire a resource lock" : null,
+                        timed.readWait, labels + ",mode=\"read\"");
+                Metrics.histogram(out, "fds_lock_wait_seconds", null, timed.writeWait, labels + ",mode=\"write\"");
+                first = false;
+            }
+            first = true;
+            for (ReentrantReadWriteLock lock : locks) {
+                Metrics.gauge(out, "fds_lock_queue_length", first ? "Threads currently waiting for a resource lock" : null,
+                        "lock=\"" + ((TimedReadWriteLock) lock).name + "\"", lock.getQueueLength());
+                first = false;
+            }
+            
+            if (executorService instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+                Metrics.gauge(out, "fds_executor_queue_length", "Exchanges waiting for a request thread",
+                        null, pool.getQueue().size());
+                Metrics.gauge(out, "fds_executor_active_threads", "Request threads running a handler",
+                        null, pool.getActiveCount());
+                Metrics.gauge(out, "fds_executor_pool_size", "Request threads in the pool", null, pool.getPoolSize());
+            }
+            
+            // The group-commit queue is where writers wait for the disk
+            Metrics.gauge(out, "fds_writer_queue_length", "Writes waiting for the group-commit writer",
+                    null, writer.queued());
+            Metrics.counter(out, "fds_writer_records_total", "Records appended by the group-commit writer",
+                    null, writer.records.get());
+            Metrics.counter(out, "fds_writer_batches_total", "Per-file writes issued by the group-commit writer",
+                    null, writer.batches.get());
+            Metrics.histogram(out, "fds_writer_fsync_seconds", "Time spent forcing data files to disk",
+                    writer.syncLatency, null);
+            first = true;
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(writer.bytesByFile).entrySet()) {
+                Metrics.counter(out, "fds_file_written_bytes_total", first ? "Bytes written per data file" : null,
+                        "file=\"" + Metrics.escape(entry.getKey()) + "\"", entry.getValue().sum());
+                first = false;
+            }
+            
+            Metrics.gauge(out, "fds_startup_milliseconds", "Time taken to load the data files at startup",
+                    "source=\"" + (SLOTTED ? "slots" : repository.loadedSnapshot ? "snapshot" : "text") + "\"",
+                    repository.loadMillis);
+            
+            if (SLOTTED) {
+                Metrics.gauge(out, "fds_slots_used", "Slots holding a record in the slot files",
+                        "type=\"food\"", repository.foodSlots.used());
+                Metrics.gauge(out, "fds_slots_used", null, "type=\"request\"", repository.requestSlots.used());
+            }
+            
+            if (replication != null) {
+                Metrics.gauge(out, "fds_replication_replicas", "Replicas following this primary", null,
+                        replication.followers().size());
+                first = true;
+                for (ReplicationLog.Follower follower : replication.followers()) {
+                    Metrics.gauge(out, "fds_replication_queue_length", first ? "Changes waiting to be sent to a replica" : null,
+                            "replica=\"" + Metrics.escape(follower.name) + "\"", follower.queue.size());
+                    first = false;
+                }
+                Metrics.counter(out, "fds_replication_lines_total", "Changes sent to replicas", null,
+                        replication.lines.sum());
+                Metrics.counter(out, "fds_replication_dropped_total", "Replicas cut off for falling too far behind",
+                        null, replication.dropped.sum());
+            }
+            if (replica != null) {
+                Metrics.gauge(out, "fds_replica_connected", "Whether this replica is following its primary", null,
+                        replica.connected ? 1 : 0);
+                Metrics.counter(out, "fds_replica_applied_total", "Changes applied from the primary", null,
+                        replica.applied.sum());
+                Metrics.gauge(out, "fds_replica_lag_entries", "Changes published by the primary and not yet applied",
+                        null, replica.primarySeq - replica.appliedSeq);
+                Metrics.gauge(out, "fds_replica_lag_milliseconds",
+                        "Time from the primary publishing the last applied change to applying it", null, replica.lagMillis);
+                Metrics.gauge(out, "fds_replica_last_contact_milliseconds", "Time since the primary was last heard from",
+                        null, System.currentTimeMillis() - replica.lastContact);
+            }
+            
+            // Each family is written for both budgets before the next one starts, as the text
+            // format wants all of a family's samples in one group
+            if (admission.enabled) {
+                List<AdmissionControl.Budget> budgets = Arrays.asList(admission.reads, admission.writes);
+                first = true;
+                for (AdmissionControl.Budget budget : budgets) {
+                    Metrics.gauge(out, "fds_admission_limit", first ? "Concurrent requests currently admitted" : null,
+                            "class=\"" + budget.name + "\"", budget.limit());
+                    first = false;
+                }
+                first = true;
+                for (AdmissionControl.Budget budget : budgets) {
+                    Metrics.gauge(out, "fds_admission_in_flight", first ? "Admitted requests being handled" : null,
+                            "class=\"" + budget.name + "\"", budget.inFlight());
+                    first = false;
+                }
+                first = true;
+                for (AdmissionControl.Budget budget : budgets) {
+                    String labels = "class=\"" + budget.name + "\"";
+                    Metrics.counter(out, "fds_admission_rejected_total", first ? "Requests shed with 503" : null,
+                            labels + ",reason=\"limit\"", budget.overLimit.sum());
+                    Metrics.counter(out, "fds_admission_rejected_total", null,
+                            labels + ",reason=\"queue\"", budget.queuedTooLong.sum());
+                    first = false;
+                }
+                first = true;
+                for (AdmissionControl.Budget budget : budgets) {
+                    Metrics.histogram(out, "fds_admission_queue_seconds",
+                            first ? "Time requests waited for a request thread" : null, budget.queueTime,
+                            "class=\"" + budget.name + "\"");
+                    first = false;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
             }
+            
+            List<ListCache> caches = Arrays.asList(foodLists, requestLists);
+            first = true;
+            for (ListCache lists : caches) {
+                String labels = "list=\"" + lists.name + "\"";
+                Metrics.counter(out, "fds_list_cache_requests_total",
+                        first ? "List requests by cache outcome (bypass: page too large to keep)" : null,
+                        labels + ",result=\"hit\"", lists.hits.sum());
+                Metrics.counter(out, "fds_list_cache_requests_total", null, labels + ",result=\"miss\"",
+                        lists.misses.sum());
+                Metrics.counter(out, "fds_list_cache_requests_total", null, labels + ",result=\"bypass\"",
+                        lists.bypassed.sum());
+                first = false;
+            }
+            first = true;
+            for (ListCache lists : caches) {
+                Metrics.counter(out, "fds_list_not_modified_total", first ? "List requests answered with 304" : null,
+                        "list=\"" + lists.name + "\"", lists.notModified.sum());
+                first = false;
+            }
+            first = true;
+            for (ListCache lists : caches) {
+                Metrics.gauge(out, "fds_list_cache_entries", first ? "List pages currently cached" : null,
+                        "list=\"" + lists.name + "\"", lists.size());
+                first = false;
+            }
+            
+            Metrics.gauge(out, "fds_events_subscribers", "Open /api/events streams", null, events.subscriberCount());
+            
+            Metrics.counter(out, "fds_matches_total", "Matches found by the matching engine",
+                    "outcome=\"proposed\"", matcher.proposed.sum());
+            Metrics.counter(out, "fds_matches_total", null, "outcome=\"committed\"", matcher.committed.sum());
+            Metrics.counter(out, "fds_matches_total", null, "outcome=\"conflict\"", matcher.conflicts.sum());
+            Metrics.gauge(out, "fds_matcher_backlog", "New records waiting for the matching engine",
+                    null, matcher.backlog());
+            
+            Metrics.counter(out, "fds_food_expired_total", "Food items marked expired", null, expiry.expired.sum());
+            Metrics.gauge(out, "fds_expiry_scheduled", "Perishable food items waiting for their expiry",
+                    null, expiry.scheduled());
+            Metrics.counter(out, "fds_archived_records_total", "Closed records moved to the archive",
+                    "type=\"food\"", archive.count("food"));
+            Metrics.counter(out, "fds_archived_records_total", null, "type=\"request\"", archive.count("request"));
+            
+            ThreadPoolExecutor hashers = (ThreadPoolExecutor) hashingPool;
+            Metrics.gauge(out, "fds_auth_hash_queue_length", "Password hashes waiting for a hashing thread",
+                    null, hashers.getQueue().size());
+            Metrics.gauge(out, "fds_sessions", "Login sessions held in memory", null, sessions.size());
+            
+            byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.getResponseBody().close();
         }
     }
     
-    static class ListRequestsHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            try {
-                requestLock.readLock().lock();
-                try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> requests = Files.readAllLines(Paths.get(REQUESTS_FILE));
-                        StringBuilder json = new StringBuilder("[");
-                        
-                        for (int i = 0; i < requests.size(); i++) {
-                            String[] parts = requests.get(i).split("\\|");
-                            if (parts.length >= 5) {
-                                json.append("{\"id\":\"").append(parts[0])
-                                    .append("\",\"receiver\":\"").append(parts[1])
-                                    .append("\",\"foodType\":\"").append(parts[2])
-                                    .append("\",\"quantity\":\"").append(parts[3])
-                                    .append("\",\"status\":\"").append(parts[4])
-                                    .append("\"}");
-                                if (i < requests.size() - 1) json.append(",");
-                            }
-                        }
-                        
-                        json.append("]");
-                        sendResponse(exchange, 200, json.toString());
-                    } finally {
-                        fileSemaphore.release();
+    // Counters and histograms behind /api/metrics. Everything is recorded without locks (LongAdder
+    // and LatencyHistogram), so instrumenting a hot path adds no contention of its own.
+    static class Metrics {
+        // Prometheus histogram buckets, in seconds
+        private static final String[] BUCKETS = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+                "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        
+        private final ConcurrentHashMap<String, ContextStats> contexts = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongAdder> bytesRead = new ConcurrentHashMap<>();
+        // Time handlers spend in awaitDurable, i.e. waiting for their write to reach the disk
+        final LatencyHistogram durableWait = new LatencyHistogram();
+        
+        static class ContextStats {
+            final LatencyHistogram latency = new LatencyHistogram();
+            final LongAdder inFlight = new LongAdder();
+            private final ConcurrentHashMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+            
+            // -1 means the handler threw before sending a response
+            void responded(int status) {
+                LongAdder count = responses.get(status);
+                if (count == null) {
+                    count = responses.computeIfAbsent(status, s -> new LongAdder());
+                }
+                count.increment();
+            }
+        }
+        
+        ContextStats context(String path) {
+            return contexts.computeIfAbsent(path, p -> new ContextStats());
+        }
+        
+        void read(String file, long bytes) {
+            bytesRead.computeIfAbsent(file, f -> new LongAdder()).add(bytes);
+        }
+        
+        void writeTo(StringBuilder out) {
+            SortedMap<String, ContextStats> sorted = new TreeMap<>(contexts);
+            boolean first = true;
+            for (Map.Entry<String, ContextStats> entry : sorted.entrySet()) {
+                String context = "context=\"" + escape(entry.getKey()) + "\"";
+                for (Map.Entry<Integer, LongAdder> response : new TreeMap<>(entry.getValue().responses).entrySet()) {
+                    int status = response.getKey();
+                    counter(out, "fds_http_requests_total", first ? "Requests handled, by context and status" : null,
+                            context + ",code=\"" + (status < 0 ? "none" : Integer.toString(status)) + "\"",
+                            response.getValue().sum());
+                    first = false;
+                }
+            }
+            first = true;
+            for (Map.Entry<String, ContextStats> entry : sorted.entrySet()) {
+                gauge(out, "fds_http_requests_in_flight", first ? "Requests currently inside a handler" : null,
+                        "context=\"" + escape(entry.getKey()) + "\"", entry.getValue().inFlight.sum());
+                first = false;
+            }
+            first = true;
+            for (Map.Entry<String, ContextStats> entry : sorted.entrySet()) {
+                histogram(out, "fds_http_request_duration_seconds", first ? "Time spent in the handler" : null,
+                        entry.getValue().latency, "context=\"" + escape(entry.getKey()) + "\"");
+                first = false;
+            }
+            first = true;
+            for (Map.Entry<String, ContextStats> entry : sorted.entrySet()) {
+                long[] counts = entry.getValue().latency.snapshot();
+                if (Arrays.stream(counts).allMatch(count -> count == 0)) continue;
+                for (double quantile : QUANTILES) {
+                    if (first) {
+                        help(out, "fds_http_request_duration_quantile_seconds",
+                                "Handler time percentiles since startup, within 1/16 of the true value", "gauge");
+                        first = false;
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    requestLock.readLock().unlock();
+                    out.append("fds_http_request_duration_quantile_seconds{context=\"").append(escape(entry.getKey()))
+                            .append("\",quantile=\"").append(quantile).append("\"} ")
+                            .append(LatencyHistogram.quantile(counts, quantile) / 1e9).append('\n');
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
             }
+            histogram(out, "fds_durable_wait_seconds", "Time handlers wait for their write to be durable",
+                    durableWait, null);
+            first = true;
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(bytesRead).entrySet()) {
+                counter(out, "fds_file_read_bytes_total", first ? "Bytes read per file" : null,
+                        "file=\"" + escape(entry.getKey()) + "\"", entry.getValue().sum());
+                first = false;
+            }
+        }
+        
+        // help == null continues the series started by the previous call with the same name
+        static void counter(StringBuilder out, String name, String help, String labels, long value) {
+            if (help != null) help(out, name, help, "counter");
+            sample(out, name, labels).append(value).append('\n');
+        }
+        
+        static void gauge(StringBuilder out, String name, String help, String labels, long value) {
+            if (help != null) help(out, name, help, "gauge");
+            sample(out, name, labels).append(value).append('\n');
+        }
+        
+        static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram, String labels) {
+            if (help != null) help(out, name, help, "histogram");
+            long[] counts = histogram.snapshot();
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            int index = 0;
+            for (String bucket : BUCKETS) {
+                long limit = (long) (Double.parseDouble(bucket) * 1e9);
+                // A sub-bucket straddling the limit is counted in the next bucket up
+                while (index < counts.length && LatencyHistogram.upperBound(index) - 1 <= limit) {
+                    cumulative += counts[index++];
+                }
+                sample(out, name + "_bucket", prefix + "le=\"" + bucket + "\"").append(cumulative).append('\n');
+            }
+            while (index < counts.length) {
+                cumulative += counts[index++];
+            }
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"").append(cumulative).append('\n');
+            sample(out, name + "_sum", labels).append(histogram.sum() / 1e9).append('\n');
+            sample(out, name + "_count", labels).append(cumulative).append('\n');
+        }
+        
+        private static void help(StringBuilder out, String name, String help, String type) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        
+        private static StringBuilder sample(StringBuilder out, String name, String labels) {
+            out.append(name);
+            if (labels != null) out.append('{').append(labels).append('}');
+            return out.append(' ');
+        }
+        
+        static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
         }
     }
     
-    static class CancelRequestHandler implements HttpHandler {
+    /**
+     * Log-linear histogram of nanosecond durations in the style of HdrHistogram: every power of
+     * two is split into 16 sub-buckets, so a value is known to within 1/16 (about 6%) from 16 ns
+     * up to about an hour. Recording is one atomic increment and one LongAdder add, with no locks.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 42;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(index(nanos));
+            sum.add(nanos);
+        }
+        
+        // Total of the recorded values, in whatever unit they were recorded in
+        long sum() {
+            return sum.sum();
+        }
+        
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+        
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+        
+        // Exclusive upper bound of the values counted at index
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index + 1;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+        }
+        
+        // Upper bound of the sub-bucket holding the given quantile, or 0 when nothing was recorded
+        static long quantile(long[] counts, double quantile) {
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+    
+    // A ReentrantReadWriteLock that records how long callers wait for it; handlers use it unchanged
+    static class TimedReadWriteLock extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+        
+        final String name;
+        final LatencyHistogram readWait = new LatencyHistogram();
+        final LatencyHistogram writeWait = new LatencyHistogram();
+        private final ReadLock readLock = new TimedReadLock(this);
+        private final WriteLock writeLock = new TimedWriteLock(this);
+        
+        TimedReadWriteLock(String name, boolean fair) {
+            super(fair);
+            this.name = name;
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
-                return;
+        public ReadLock readLock() {
+            return readLock;
+        }
+        
+        @Override
+        public WriteLock writeLock() {
+            return writeLock;
+        }
+        
+        private static class TimedReadLock extends ReadLock {
+            private static final long serialVersionUID = 1L;
+            
+            private final TimedReadWriteLock owner;
+            
+            TimedReadLock(TimedReadWriteLock owner) {
+                super(owner);
+                this.owner = owner;
             }
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String requestId = params.get("requestId");
-                String receiver = params.get("receiver");
-                
-                requestLock.writeLock().lock();
+            @Override
+            public void lock() {
+                long start = System.nanoTime();
+                super.lock();
+                owner.readWait.record(System.nanoTime() - start);
+            }
+            
+            @Override
+            public void lockInterruptibly() throws InterruptedException {
+                long start = System.nanoTime();
+                super.lockInterruptibly();
+                owner.readWait.record(System.nanoTime() - start);
+            }
+            
+            @Override
+            public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+                long start = System.nanoTime();
                 try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> requests = Files.readAllLines(Paths.get(REQUESTS_FILE));
-                        List<String> updatedRequests = new ArrayList<>();
-                        boolean found = false;
-                        
-                        for (String request : requests) {
-                            String[] parts = request.split("\\|");
-                            if (parts[0].equals(requestId) && parts[1].equals(receiver) && 
-                                "pending".equals(parts[4])) {
-                                // Mark as cancelled
-                                updatedRequests.add(parts[0] + "|" + parts[1] + "|" + parts[2] + 
-                                                "|" + parts[3] + "|cancelled");
-                                found = true;
-                            } else {
-                                updatedRequests.add(request);
-                            }
-                        }
-                        
-                        if (found) {
-                            Files.write(Paths.get(REQUESTS_FILE), 
-                                    (String.join("\n", updatedRequests) + "\n").getBytes());
-                            sendResponse(exchange, 200, "{\"success\":true}");
-                        } else {
-                            sendResponse(exchange, 404, "{\"error\":\"Request not found or already processed\"}");
-                        }
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
+                    return super.tryLock(timeout, unit);
                 } finally {
-                    requestLock.writeLock().unlock();
+                    owner.readWait.record(System.nanoTime() - start);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+        
+        private static class TimedWriteLock extends WriteLock {
+            private static final long serialVersionUID = 1L;
+            
+            private final TimedReadWriteLock owner;
+            
+            TimedWriteLock(TimedReadWriteLock owner) {
+                super(owner);
+                this.owner = owner;
+            }
+            
+            @Override
+            public void lock() {
+                long start = System.nanoTime();
+                super.lock();
+                owner.writeWait.record(System.nanoTime() - start);
+            }
+            
+            @Override
+            public void lockInterruptibly() throws InterruptedException {
+                long start = System.nanoTime();
+                super.lockInterruptibly();
+                owner.writeWait.record(System.nanoTime() - start);
+            }
+            
+            @Override
+            public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+                long start = System.nanoTime();
+                try {
+                    return super.tryLock(timeout, unit);
+                } finally {
+                    owner.writeWait.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Streams JSON to an OutputStream, encoding UTF-8 and escaping strings straight into a
+     * pooled fixed-size buffer. Peak memory per response is one buffer however many records
+     * are written; there is no intermediate String or byte[] copy of the payload.
+     */
+    static class JsonStreamWriter implements Closeable {
+        private static final int BUFFER_SIZE = 8192;
+        private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(64);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int position;
+        // Whether the array/object at each nesting depth already has an element (needs a comma)
+        private final boolean[] hasElement = new boolean[16];
+        private int depth;
+        
+        JsonStreamWriter(OutputStream out) {
+            this.out = out;
+            byte[] pooled = BUFFERS.poll();
+            this.buffer = pooled != null ? pooled : new byte[BUFFER_SIZE];
+        }
+        
+        JsonStreamWriter beginArray() throws IOException {
+            return open('[');
+        }
+        
+        JsonStreamWriter endArray() throws IOException {
+            return close(']');
+        }
+        
+        JsonStreamWriter beginObject() throws IOException {
+            return open('{');
+        }
+        
+        // An object as the value of a field
+        JsonStreamWriter beginObject(String name) throws IOException {
+            separate();
+            string(name);
+            write(':');
+            write('{');
+            hasElement[++depth] = false;
+            return this;
+        }
+        
+        JsonStreamWriter endObject() throws IOException {
+            return close('}');
+        }
+        
+        JsonStreamWriter field(String name, String value) throws IOException {
+            separate();
+            string(name);
+            write(':');
+            if (value == null) {
+                ascii("null");
+            } else {
+                string(value);
+            }
+            return this;
+        }
+        
+        JsonStreamWriter field(String name, long value) throws IOException {
+            separate();
+            string(name);
+            write(':');
+            ascii(Long.toString(value));
+            return this;
+        }
+        
+        // Non-finite values have no JSON form and are written as null
+        JsonStreamWriter field(String name, double value) throws IOException {
+            separate();
+            string(name);
+            write(':');
+            ascii(Double.isFinite(value) ? Double.toString(value) : "null");
+            return this;
+        }
+        
+        private JsonStreamWriter open(char bracket) throws IOException {
+            separate();
+            write(bracket);
+            hasElement[++depth] = false;
+            return this;
+        }
+        
+        private JsonStreamWriter close(char bracket) throws IOException {
+            depth--;
+            write(bracket);
+            return this;
+        }
+        
+        private void separate() throws IOException {
+            if (hasElement[depth]) write(',');
+            hasElement[depth] = true;
+        }
+        
+        private void string(String value) throws IOException {
+            write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c < 0x20) {
+                    escapeControl(c);
+                } else if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xC0 | (c >> 6));
+                    write(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+                        Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    write(0xF0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3F));
+                    write(0x80 | ((codePoint >> 6) & 0x3F));
+                    write(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    write('?');
+                } else {
+                    write(0xE0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3F));
+                    write(0x80 | (c & 0x3F));
+                }
+            }
+            write('"');
+        }
+        
+        private void escapeControl(char c) throws IOException {
+            write('\\');
+            switch (c) {
+                case '\n': write('n'); break;
+                case '\r': write('r'); break;
+                case '\t': write('t'); break;
+                case '\b': write('b'); break;
+                case '\f': write('f'); break;
+                default:
+                    ascii("u00");
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xF]);
+            }
+        }
+        
+        private void ascii(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                write(text.charAt(i));
+            }
+        }
+        
+        private void write(int b) throws IOException {
+            if (position == buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = (byte) b;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                out.write(buffer, 0, position);
+                out.close();
+            } finally {
+                position = 0;
+                BUFFERS.offer(buffer);
             }
         }
     }
     
-    static class DeleteRequestHandler implements HttpHandler {
+    static class StaticFileHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            String path = exchange.getRequestURI().getPath();
+            if ("/".equals(path)) path = "/index.html";
+            
+            AssetCache.Asset asset = assets.get(path);
+            if (asset == null) {
+                sendResponse(exchange, 404, "File not found");
                 return;
             }
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String requestId = params.get("requestId");
-                String receiver = params.get("receiver");
-                
-                if (requestId == null || receiver == null) {
-                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
-                    return;
+            boolean gzip = asset.gzip != null && acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", gzip ? asset.gzipEtag : asset.etag);
+            headers.set("Last-Modified", asset.lastModifiedHeader);
+            // Cached copies are revalidated on every use, which costs a 304 at most
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Vary", "Accept-Encoding");
+            
+            if (notModified(exchange.getRequestHeaders(), asset)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            
+            byte[] bytes = gzip ? asset.gzip : asset.bytes;
+            headers.set("Content-Type", asset.contentType);
+            if (gzip) headers.set("Content-Encoding", "gzip");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                headers.set("Content-Length", Integer.toString(bytes.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+            exchange.getResponseBody().close();
+        }
+        
+        // If-None-Match wins over If-Modified-Since when both are sent (RFC 9110 13.2.2)
+        private static boolean notModified(Headers request, AssetCache.Asset asset) {
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.startsWith("W/")) tag = tag.substring(2);
+                    if (tag.equals("*") || tag.equals(asset.etag) || tag.equals(asset.gzipEtag)) {
+                        return true;
+                    }
                 }
-                
-                requestLock.writeLock().lock();
+                return false;
+            }
+            String ifModifiedSince = request.getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
                 try {
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> requests = Files.readAllLines(Paths.get(REQUESTS_FILE));
-                        List<String> updatedRequests = new ArrayList<>();
-                        boolean found = false;
-                        
-                        for (String request : requests) {
-                            String[] parts = request.split("\\|");
-                            // Only delete if it matches ID and receiver, and is not already fulfilled
-                            if (parts[0].equals(requestId) && parts[1].equals(receiver)) {
-                                // Don't add this request to the updated list (effectively deleting it)
-                                found = true;
-                            } else {
-                                updatedRequests.add(request);
-                            }
-                        }
-                        
-                        if (found) {
-                            Files.write(Paths.get(REQUESTS_FILE), 
-                                    (String.join("\n", updatedRequests) + 
-                                    (updatedRequests.isEmpty() ? "" : "\n")).getBytes());
-                            sendResponse(exchange, 200, "{\"success\":true}");
-                        } else {
-                            sendResponse(exchange, 404, "{\"error\":\"Request not found\"}");
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toInstant().toEpochMilli();
+                    return asset.lastModified <= since;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+        
+        static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) return false;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim();
+                if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) continue;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
                         }
-                    } finally {
-                        fileSemaphore.release();
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    requestLock.writeLock().unlock();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                return true;
             }
+            return false;
         }
     }
     
-    static class FulfillRequestHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+    // In-memory copies of static files, each with a gzip variant when that is smaller. Entries are
+    // dropped when a WatchService reports a change in their directory and reloaded on the next hit.
+    static class AssetCache {
+        private final Path root;
+        private final ConcurrentHashMap<Path, Asset> cache = new ConcurrentHashMap<>();
+        private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+        // Bumped on every invalidation so a load that raced with a change doesn't cache stale bytes
+        private final AtomicLong generation = new AtomicLong();
+        private volatile WatchService watcher;
+        
+        AssetCache(Path root) {
+            this.root = root.toAbsolutePath().normalize();
+        }
+        
+        // Without a watcher nothing is cached and every hit reads the file, as before
+        void start() {
+            try {
+                watcher = root.getFileSystem().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.err.println("Static file cache disabled, cannot watch for changes: " + e.getMessage());
                 return;
             }
+            Thread thread = new Thread(this::watch, "asset-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        // Returns null for missing files, directories and paths outside the root
+        Asset get(String requestPath) throws IOException {
+            Path file = root.resolve(requestPath.substring(1)).normalize();
+            if (!file.startsWith(root)) {
+                return null;
+            }
+            Asset asset = cache.get(file);
+            if (asset != null) {
+                return asset;
+            }
             
-            try {
-                String body = new String(exchange.getRequestBody().readAllBytes());
-                Map<String, String> params = parseParams(body);
-                
-                String requestId = params.get("requestId");
-                String donor = params.get("donor");
-                
-                if (requestId == null || donor == null) {
-                    sendResponse(exchange, 400, "{\"error\":\"Missing parameters\"}");
-                    return;
+            WatchService watcher = this.watcher;
+            long before = generation.get();
+            if (watcher != null && watchedDirectories.add(file.getParent())) {
+                try {
+                    file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    watchedDirectories.remove(file.getParent());
+                    watcher = null;
                 }
-                
-                // Need to acquire locks in proper order to prevent deadlock
-                boolean requestAcquired = false;
+            }
+            
+            asset = load(file);
+            if (asset != null && watcher != null) {
+                cache.put(file, asset);
+                if (generation.get() != before) {
+                    cache.remove(file, asset);
+                }
+            }
+            return asset;
+        }
+        
+        private void watch() {
+            while (true) {
+                WatchKey key;
                 try {
-                    requestAcquired = requestLock.writeLock().tryLock(5, TimeUnit.SECONDS);
-                    if (!requestAcquired) {
-                        sendResponse(exchange, 503, "{\"error\":\"Server busy, try again\"}");
-                        return;
-                    }
-                    
-                    fileSemaphore.acquire();
-                    try {
-                        List<String> requests = Files.readAllLines(Paths.get(REQUESTS_FILE));
-                        List<String> updatedRequests = new ArrayList<>();
-                        boolean found = false;
-                        String foodType = "";
-                        String quantity = "";
-                        
-                        for (String request : requests) {
-                            String[] parts = request.split("\\|");
-                            if (parts[0].equals(requestId) && "pending".equals(parts[4])) {
-                                // Mark as fulfilled and add donor info
-                                foodType = parts[2];
-                                quantity = parts[3];
-                                updatedRequests.add(parts[0] + "|" + parts[1] + "|" + parts[2] + 
-                                                "|" + parts[3] + "|fulfilled|" + donor);
-                                found = true;
-                            } else {
-                                updatedRequests.add(request);
-                            }
-                        }
-                        
-                        if (found) {
-                            Files.write(Paths.get(REQUESTS_FILE), 
-                                    (String.join("\n", updatedRequests) + "\n").getBytes());
-                            sendResponse(exchange, 200, "{\"success\":true,\"message\":\"Request fulfilled successfully\"}");
-                        } else {
-                            sendResponse(exchange, 404, "{\"error\":\"Request not found or already processed\"}");
-                        }
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    sendResponse(exchange, 503, "{\"error\":\"Operation interrupted\"}");
-                } finally {
-                    if (requestAcquired) {
-                        requestLock.writeLock().unlock();
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                Path directory = (Path) key.watchable();
+                generation.incrementAndGet();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        cache.clear();
+                    } else {
+                        cache.remove(directory.resolve((Path) event.context()));
                     }
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                if (!key.reset()) {
+                    // The directory itself went away
+                    watchedDirectories.remove(directory);
+                    cache.keySet().removeIf(path -> path.startsWith(directory));
+                }
+            }
+        }
+        
+        private Asset load(Path file) throws IOException {
+            BasicFileAttributes attributes;
+            byte[] bytes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                bytes = Files.readAllBytes(file);
+                metrics.read(root.relativize(file).toString(), bytes.length);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            return new Asset(bytes, contentType(file.getFileName().toString()), attributes.lastModifiedTime().toMillis());
+        }
+        
+        private static String contentType(String name) {
+            if (name.endsWith(".html")) return "text/html";
+            if (name.endsWith(".css")) return "text/css";
+            if (name.endsWith(".js")) return "application/javascript";
+            return "text/plain";
+        }
+        
+        static class Asset {
+            final byte[] bytes;
+            final byte[] gzip;
+            final String contentType;
+            final String etag;
+            final String gzipEtag;
+            // Truncated to whole seconds, the precision of Last-Modified / If-Modified-Since
+            final long lastModified;
+            final String lastModifiedHeader;
+            
+            Asset(byte[] bytes, String contentType, long lastModifiedMillis) throws IOException {
+                this.bytes = bytes;
+                this.contentType = contentType;
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+                this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+                this.lastModified = lastModifiedMillis / 1000 * 1000;
+                this.lastModifiedHeader = DateTimeFormatter.RFC_1123_DATE_TIME
+                        .format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC));
+                byte[] compressed = compress(bytes);
+                this.gzip = compressed.length < bytes.length ? compressed : null;
+            }
+            
+            private static byte[] compress(byte[] bytes) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                // Compressed once per change, so the slowest level is worth it
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+                    gzip.write(bytes);
+                }
+                return out.toByteArray();
             }
         }
     }
     
-    static class StaticFileHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            if ("/".equals(path)) path = "/index.html";
+    /**
+     * List pages as sent, keyed by query string and tagged with the repository version they were
+     * built at. A lookup at a later version misses, so a change to any record of the collection
+     * retires every page of it without walking them. Versions are bumped after the change they
+     * stand for, so a page is never older than its version. The ETag is a checksum of the bytes,
+     * so a client that revalidates gets 304 whenever the page itself didn't change, across
+     * unrelated changes and restarts alike. The gzip copy is made on first request.
+     */
+    static class ListCache {
+        // Smaller bodies aren't worth a gzip header and a deflate pass
+        private static final int MIN_GZIP_BYTES = 1024;
+        
+        final String name;
+        private final int maxEntries;
+        private final int maxRecords;
+        private final ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<>();
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder bypassed = new LongAdder();
+        final LongAdder notModified = new LongAdder();
+        
+        ListCache(String name, int maxEntries, int maxRecords) {
+            this.name = name;
+            this.maxEntries = maxEntries;
+            this.maxRecords = maxRecords;
+        }
+        
+        // The page for this query built at this version, or null
+        Page get(String query, long version) {
+            if (maxEntries <= 0) return null;
+            Page page = pages.get(query == null ? "" : query);
+            if (page == null || page.version != version) return null;
+            hits.increment();
+            return page;
+        }
+        
+        // Whether a page of this many records is kept; larger ones are streamed as they are built
+        boolean keeps(int records) {
+            return maxEntries > 0 && records <= maxRecords;
+        }
+        
+        // Keeps a freshly built page for the next request. Past maxEntries queries the cache
+        // starts over rather than tracking recency.
+        Page put(String query, long version, byte[] json, long nextCursor) {
+            Page page = new Page(version, json, nextCursor);
+            misses.increment();
+            if (pages.size() >= maxEntries) pages.clear();
+            pages.put(query == null ? "" : query, page);
+            return page;
+        }
+        
+        int size() {
+            return pages.size();
+        }
+        
+        // Sends the page, or 304 when the client's If-None-Match already names it
+        void send(HttpExchange exchange, Page page) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Access-Control-Allow-Origin", "*");
+            if (page.nextCursor >= 0) setNextCursor(exchange, page.nextCursor);
+            boolean gzip = page.bytes.length >= MIN_GZIP_BYTES &&
+                    StaticFileHandler.acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            headers.set("ETag", gzip ? page.gzipEtag : page.etag);
+            headers.set("Cache-Control", "no-cache");
+            headers.set("Vary", "Accept-Encoding");
+            
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.startsWith("W/")) tag = tag.substring(2);
+                    if (tag.equals(page.etag) || tag.equals(page.gzipEtag)) {
+                        notModified.increment();
+                        exchange.sendResponseHeaders(304, -1);
+                        exchange.close();
+                        return;
+                    }
+                }
+            }
             
-            File file = new File("." + path);
-            if (file.exists() && !file.isDirectory()) {
-                byte[] bytes = Files.readAllBytes(file.toPath());
-                String contentType = getContentType(path);
-                exchange.getResponseHeaders().set("Content-Type", contentType);
+            byte[] bytes = gzip ? page.gzip() : page.bytes;
+            headers.set("Content-Type", "application/json; charset=utf-8");
+            if (gzip) headers.set("Content-Encoding", "gzip");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                headers.set("Content-Length", Integer.toString(bytes.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
                 exchange.sendResponseHeaders(200, bytes.length);
                 exchange.getResponseBody().write(bytes);
-            } else {
-                sendResponse(exchange, 404, "File not found");
             }
             exchange.getResponseBody().close();
         }
         
-        private String getContentType(String path) {
-            if (path.endsWith(".html")) return "text/html";
-            if (path.endsWith(".css")) return "text/css";
-            if (path.endsWith(".js")) return "application/javascript";
-            return "text/plain";
+        static class Page {
+            final long version;
+            final byte[] bytes;
+            final String etag;
+            final String gzipEtag;
+            // Sequence number for X-Next-Cursor, or -1 on the last page
+            final long nextCursor;
+            private volatile byte[] gzip;
+            
+            Page(long version, byte[] bytes, long nextCursor) {
+                this.version = version;
+                this.bytes = bytes;
+                this.nextCursor = nextCursor;
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+                this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            }
+            
+            // Two threads may both compress a page on its first gzip hit; either result will do
+            byte[] gzip() throws IOException {
+                byte[] compressed = gzip;
+                if (compressed == null) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                    try (GZIPOutputStream stream = new GZIPOutputStream(out)) {
+                        stream.write(bytes);
+                    }
+                    compressed = out.toByteArray();
+                    gzip = compressed;
+                }
+                return compressed;
+            }
         }
     }
     
     private static void sendResponse(HttpExchange exchange, int status, String response) 
             throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-        exchange.sendResponseHeaders(status, response.getBytes().length);
-        exchange.getResponseBody().write(response.getBytes());
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
         exchange.getResponseBody().close();
     }
     
-    private static Map<String, String> parseParams(String body) {
-        Map<String, String> params = new HashMap<>();
-        if (body.startsWith("{")) {
-            // Simple JSON parsing
-            body = body.substring(1, body.length() - 1);
-            for (String pair : body.split(",")) {
-                String[] kv = pair.split(":");
-                if (kv.length == 2) {
-                    String key = kv[0].replaceAll("\"", "").trim();
-                    String value = kv[1].replaceAll("\"", "").trim();
-                    params.put(key, value);
+    // The items of a batch endpoint's body, a JSON array of the objects its single-item endpoint
+    // takes. Returns null once a 400 has been sent.
+    private static List<Map<String, String>> parseBatch(HttpExchange exchange, String... fields)
+            throws IOException {
+        List<Map<String, String>> items = JsonBodyParser.parseArray(exchange.getRequestBody(), fields);
+        if (items == null || items.isEmpty()) {
+            sendResponse(exchange, 400, "{\"error\":\"Expected a JSON array of items\"}");
+            return null;
+        }
+        if (items.size() > MAX_BATCH_ITEMS) {
+            sendResponse(exchange, 400, "{\"error\":\"At most " + MAX_BATCH_ITEMS + " items per batch\"}");
+            return null;
+        }
+        for (Map<String, String> item : items) {
+            if (!recordSafe(exchange, item)) return null;
+        }
+        return items;
+    }
+    
+    // Values end up in '|'-separated, newline-terminated records (the data files, the journal
+    // and the replication stream), where a '|' or line break would split or forge a record.
+    // Passwords are only stored hashed, so they may hold anything. Sends 400 and returns false
+    // when a field is unsafe.
+    private static boolean recordSafe(HttpExchange exchange, Map<String, String> params) throws IOException {
+        for (Map.Entry<String, String> field : params.entrySet()) {
+            String value = field.getValue();
+            if (value == null || "password".equals(field.getKey())) continue;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '|' || c == '\n' || c == '\r') {
+                    sendResponse(exchange, 400, "{\"error\":\"" + field.getKey() +
+                            " may not contain '|' or line breaks\"}");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    // ?atomic=true asks a batch endpoint to apply all of its items or none
+    private static boolean atomic(HttpExchange exchange) {
+        return "true".equals(parseQuery(exchange.getRequestURI().getRawQuery()).get("atomic"));
+    }
+    
+    /**
+     * Per-item outcome of a batch endpoint, in request order. The response is
+     * {"success":...,"applied":n,"results":[{"success":true,"id":"..."},{"success":false,"error":"..."}]},
+     * where success means every item succeeded. A batch that was rejected as a whole reports
+     * applied 0, and its items that were fine say "Batch not applied".
+     */
+    static class BatchResults {
+        private final String[] ids;
+        private final String[] errors;
+        private boolean anyFailed;
+        
+        BatchResults(int size) {
+            ids = new String[size];
+            errors = new String[size];
+        }
+        
+        void succeeded(int index, String id) {
+            ids[index] = id;
+        }
+        
+        void failed(int index, String error) {
+            errors[index] = error;
+            anyFailed = true;
+        }
+        
+        boolean anyFailed() {
+            return anyFailed;
+        }
+        
+        String toJson(boolean applied) {
+            StringBuilder items = new StringBuilder();
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) items.append(',');
+                if (errors[i] != null || !applied) {
+                    items.append("{\"success\":false,\"error\":\"")
+                            .append(errors[i] != null ? errors[i] : "Batch not applied").append("\"}");
+                } else {
+                    items.append("{\"success\":true,\"id\":\"").append(ids[i]).append("\"}");
+                    count++;
                 }
             }
+            return "{\"success\":" + (applied && !anyFailed) + ",\"applied\":" + count +
+                    ",\"results\":[" + items + "]}";
+        }
+    }
+    
+    // 503 for load the server chose to shed; the client may retry after a second
+    private static void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendResponse(exchange, 503, "{\"error\":\"Server busy, try again\"}");
+    }
+    
+    // Sends 200 headers with chunked transfer encoding; the caller streams the body and closes it
+    private static JsonStreamWriter startJsonStream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.sendResponseHeaders(200, 0);
+        return new JsonStreamWriter(exchange.getResponseBody());
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            try {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // skip malformed pairs
+            }
         }
         return params;
     }
+    
+    // No limit means the whole list, as before pagination existed
+    private static int parseLimit(String limit) {
+        if (limit == null) return Integer.MAX_VALUE;
+        int value = Integer.parseInt(limit);
+        if (value < 1) throw new IllegalArgumentException("limit must be positive");
+        return value;
+    }
+    
+    // An ISO-8601 time with an offset (2026-10-16T18:00:00Z) or epoch milliseconds; 0 if neither
+    private static long parseTime(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+            } catch (DateTimeParseException notIso) {
+                return 0;
+            }
+        }
+    }
+    
+    // Cursors are the sequence number of the last record on the previous page, in base 36
+    private static long parseCursor(String cursor) {
+        return cursor == null ? 0 : Long.parseLong(cursor, 36);
+    }
+    
+    // The body stays a plain array for existing clients; the cursor travels in a header
+    private static void setNextCursor(HttpExchange exchange, long seq) {
+        exchange.getResponseHeaders().set("X-Next-Cursor", Long.toString(seq, 36));
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "X-Next-Cursor");
+    }
+    
+    /**
+     * Single-pass parser for the flat JSON objects the API accepts, alone or (for the batch
+     * endpoints) in an array. The body is read into a pooled buffer and scanned byte by byte;
+     * only the requested fields become Strings, with no body String, regex or split arrays in
+     * between. Values may contain commas, colons and escaped quotes. Malformed input ends the
+     * scan and keeps the fields parsed so far, the same leniency the old split-based parser had.
+     */
+    static class JsonBodyParser {
+        private static final int BUFFER_SIZE = 4096;
+        private static final int MAX_BODY = 1 << 20;
+        private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(64);
+        
+        private final byte[] buf;
+        private final int end;
+        private final String[] fields;
+        private int pos;
+        // Whether the last object() reached its closing brace
+        private boolean closed;
+        
+        private JsonBodyParser(byte[] buf, int end, String[] fields) {
+            this.buf = buf;
+            this.end = end;
+            this.fields = fields;
+        }
+        
+        // Extracts the named fields (all fields if none are named); JSON null counts as absent
+        static Map<String, String> parse(InputStream in, String... fields) throws IOException {
+            byte[] pooled = BUFFERS.poll();
+            if (pooled == null) pooled = new byte[BUFFER_SIZE];
+            try {
+                return read(in, pooled, fields).object();
+            } finally {
+                BUFFERS.offer(pooled);
+            }
+        }
+        
+        // The same for a body that is an array of such objects. Unlike parse() this is strict:
+        // a batch is applied as a whole or item by item, so anything but a well-formed array of
+        // objects returns null rather than the items before the fault.
+        static List<Map<String, String>> parseArray(InputStream in, String... fields) throws IOException {
+            byte[] pooled = BUFFERS.poll();
+            if (pooled == null) pooled = new byte[BUFFER_SIZE];
+            try {
+                return read(in, pooled, fields).array();
+            } finally {
+                BUFFERS.offer(pooled);
+            }
+        }
+        
+        private static JsonBodyParser read(InputStream in, byte[] buf, String[] fields) throws IOException {
+            int length = 0;
+            while (true) {
+                if (length == buf.length) {
+                    if (length >= MAX_BODY) throw new IOException("Request body too large");
+                    buf = Arrays.copyOf(buf, length * 2);
+                }
+                int n = in.read(buf, length, buf.length - length);
+                if (n < 0) break;
+                length += n;
+            }
+            return new JsonBodyParser(buf, length, fields);
+        }
+        
+        private List<Map<String, String>> array() {
+            List<Map<String, String>> items = new ArrayList<>();
+            skipWhitespace();
+            if (!consume('[')) return null;
+            skipWhitespace();
+            if (consume(']')) return items;
+            while (true) {
+                skipWhitespace();
+                if (pos >= end || buf[pos] != '{') return null;
+                closed = false;
+                items.add(object());
+                if (!closed) return null;
+                skipWhitespace();
+                if (consume(']')) return items;
+                if (!consume(',')) return null;
+            }
+        }
+        
+        private Map<String, String> object() {
+            Map<String, String> result = new HashMap<>();
+            skipWhitespace();
+            if (!consume('{')) return result;
+            skipWhitespace();
+            if (consume('}')) {
+                closed = true;
+                return result;
+            }
+            while (true) {
+                skipWhitespace();
+                if (pos >= end || buf[pos] != '"') return result;
+                int keyStart = pos + 1;
+                if (!skipString()) return result;
+                int keyEnd = pos - 1;
+                skipWhitespace();
+                if (!consume(':')) return result;
+                skipWhitespace();
+                String field = requested(keyStart, keyEnd);
+                if (field != null) {
+                    int valueStart = pos;
+                    String value = value();
+                    if (pos == valueStart) return result;
+                    if (value != null) result.put(field, value);
+                } else if (!skipValue()) {
+                    return result;
+                }
+                skipWhitespace();
+                if (consume('}')) {
+                    closed = true;
+                    return result;
+                }
+                if (!consume(',')) return result;
+            }
+        }
+        
+        // Compares the raw key bytes against the wanted names without allocating
+        private String requested(int start, int endExclusive) {
+            int length = endExclusive - start;
+            if (fields.length == 0) return new String(buf, start, length, StandardCharsets.UTF_8);
+            for (String field : fields) {
+                if (field.length() != length) continue;
+                int i = 0;
+                while (i < length && buf[start + i] == field.charAt(i)) i++;
+                if (i == length) return field;
+            }
+            return null;
+        }
+        
+        private String value() {
+            if (pos >= end) return null;
+            if (buf[pos] == '"') return string();
+            int start = pos;
+            while (pos < end && !isDelimiter(buf[pos])) pos++;
+            String literal = new String(buf, start, pos - start, StandardCharsets.ISO_8859_1);
+            return "null".equals(literal) ? null : literal;
+        }
+        
+        // Fast path: no escapes means the value is one slice of the buffer
+        private String string() {
+            int start = ++pos;
+            boolean ascii = true;
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '"') {
+                    pos++;
+                    return new String(buf, start, pos - 1 - start,
+                            ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                }
+                if (b == '\\') return escapedString(start);
+                if (b < 0) ascii = false;
+                pos++;
+            }
+            pos = start - 1;
+            return null;
+        }
+        
+        private String escapedString(int start) {
+            StringBuilder value = new StringBuilder();
+            int run = start;
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b == '"') {
+                    value.append(new String(buf, run, pos - run, StandardCharsets.UTF_8));
+                    pos++;
+                    return value.toString();
+                }
+                if (b != '\\') {
+                    pos++;
+                    continue;
+                }
+                value.append(new String(buf, run, pos - run, StandardCharsets.UTF_8));
+                if (pos + 1 >= end) break;
+                byte escaped = buf[pos + 1];
+                pos += 2;
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > end) {
+                            pos = start - 1;
+                            return null;
+                        }
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(buf[pos++], 16);
+                            if (digit < 0) {
+                                pos = start - 1;
+                                return null;
+                            }
+                            code = code * 16 + digit;
+                        }
+                        value.append((char) code);
+                        break;
+                    default: value.append((char) escaped);
+                }
+                run = pos;
+            }
+            pos = start - 1;
+            return null;
+        }
+        
+        private boolean skipValue() {
+            if (pos >= end) return false;
+            byte b = buf[pos];
+            if (b == '"') return skipString();
+            if (b == '{' || b == '[') {
+                int depth = 0;
+                while (pos < end) {
+                    b = buf[pos];
+                    if (b == '"') {
+                        if (!skipString()) return false;
+                        continue;
+                    }
+                    if (b == '{' || b == '[') depth++;
+                    if (b == '}' || b == ']') depth--;
+                    pos++;
+                    if (depth == 0) return true;
+                }
+                return false;
+            }
+            int start = pos;
+            while (pos < end && !isDelimiter(buf[pos])) pos++;
+            return pos > start;
+        }
+        
+        // Leaves pos just past the closing quote
+        private boolean skipString() {
+            pos++;
+            while (pos < end) {
+                byte b = buf[pos++];
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private boolean consume(char c) {
+            if (pos < end && buf[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+        
+        private void skipWhitespace() {
+            while (pos < end && (buf[pos] == ' ' || buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == '\t')) {
+                pos++;
+            }
+        }
+        
+        private static boolean isDelimiter(byte b) {
+            return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code batch} items added or claimed per invocation, either through {@code batch} calls to
+ * /api/food/add and /api/food/claim or one call to /api/food/add-batch and /api/food/claim-batch.
+ * Compare the secondary {@code items} score, which is items per second whichever way they went.
+ * Claimed items are moved back to available in one repository call after each invocation, the
+ * same for both, so the next pass finds them open.
+ *
+ * <p>fsync is off (fds.fsync=os) and journal compaction is disabled, as in
+ * {@link ClaimFulfillBenchmark}, so a batch saves handler, lock and writer round trips rather than
+ * fsyncs; with fsync on, a batch also shares one force() that single adds only share when they
+ * happen to arrive together. Every added item stays in memory, so iterations are kept short.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os", "-Dfds.journal.compactBytes=9223372036854775807"})
+public class BatchBenchmark {
+    private static final int STRIDE = 7919;
+
+    @Param({"10", "100"})
+    public int batch;
+
+    /** Items handled, reported per second next to the invocation rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Items {
+        public long items;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            items = 0;
+        }
+    }
+
+    private final FakeExchange exchange = new FakeExchange();
+    private HttpHandler add;
+    private HttpHandler addBatch;
+    private HttpHandler claim;
+    private HttpHandler claimBatch;
+    private Object repository;
+    private MethodHandle findFood;
+    private MethodHandle transitionFoods;
+    private String[] foodIds;
+    private int nextFood;
+    private byte[] addBody;
+    private byte[] addBatchBody;
+    private String[] claimed;
+
+    @Setup
+    public void setUp(Dataset data) throws Throwable {
+        add = (HttpHandler) Server.newInstance(Server.nested("AddFoodHandler"));
+        addBatch = (HttpHandler) Server.newInstance(Server.nested("AddFoodBatchHandler"));
+        claim = (HttpHandler) Server.newInstance(Server.nested("ClaimFoodHandler"));
+        claimBatch = (HttpHandler) Server.newInstance(Server.nested("ClaimFoodBatchHandler"));
+        repository = data.repository;
+        Class<?> repositoryClass = repository.getClass();
+        findFood = Server.virtualMethod(repositoryClass, "findFood", Server.nested("FoodItem"), String.class);
+        transitionFoods = Server.virtualMethod(repositoryClass, "transitionFoods", CompletableFuture.class,
+                List.class, String.class, String.class, List.class, boolean[].class);
+        foodIds = data.availableFoodIds;
+        claimed = new String[batch];
+
+        String item = "{\"donator\":\"donor1\",\"name\":\"rice\",\"quantity\":\"5 kg\",\"location\":\"Saddar\"," +
+                "\"lat\":\"24.86\",\"lon\":\"67.01\"}";
+        addBody = item.getBytes(StandardCharsets.UTF_8);
+        addBatchBody = ("[" + String.join(",", Collections.nCopies(batch, item)) + "]")
+                .getBytes(StandardCharsets.UTF_8);
+
+        Items items = new Items();
+        addFood(items);
+        addFoodBatch(items);
+        claimFood(items);
+        claimFoodBatch(items);
+        if (items.items != 4L * batch) {
+            throw new IllegalStateException("Adds or claims did not succeed against the generated data");
+        }
+    }
+
+    @Benchmark
+    public void addFood(Items items) throws Throwable {
+        for (int i = 0; i < batch; i++) {
+            add.handle(exchange.reset("POST", "/api/food/add", addBody));
+            if (exchange.getResponseCode() == 200) items.items++;
+        }
+    }
+
+    @Benchmark
+    public void addFoodBatch(Items items) throws Throwable {
+        addBatch.handle(exchange.reset("POST", "/api/food/add-batch", addBatchBody));
+        if (exchange.getResponseCode() == 200) items.items += batch;
+    }
+
+    @Benchmark
+    public void claimFood(Items items) throws Throwable {
+        nextIds();
+        for (String id : claimed) {
+            byte[] body = ("{\"foodId\":\"" + id + "\",\"receiver\":\"receiver1\"}").getBytes(StandardCharsets.UTF_8);
+            claim.handle(exchange.reset("POST", "/api/food/claim", body));
+            if (exchange.getResponseCode() == 200) items.items++;
+        }
+        release();
+    }
+
+    @Benchmark
+    public void claimFoodBatch(Items items) throws Throwable {
+        nextIds();
+        StringBuilder body = new StringBuilder("[");
+        for (String id : claimed) {
+            if (body.length() > 1) body.append(',');
+            body.append("{\"foodId\":\"").append(id).append("\",\"receiver\":\"receiver1\"}");
+        }
+        claimBatch.handle(exchange.reset("POST", "/api/food/claim-batch",
+                body.append(']').toString().getBytes(StandardCharsets.UTF_8)));
+        if (exchange.getResponseCode() == 200) items.items += batch;
+        release();
+    }
+
+    private void nextIds() {
+        for (int i = 0; i < batch; i++) {
+            claimed[i] = foodIds[nextFood];
+            nextFood = (nextFood + STRIDE) % foodIds.length;
+        }
+    }
+
+    // Puts the claimed items back for the next pass, in one write either way
+    private void release() throws Throwable {
+        List<Object> foods = new ArrayList<>(batch);
+        for (String id : claimed) {
+            foods.add(findFood.invoke(repository, id));
+        }
+        List<String> parties = Arrays.asList(new String[batch]);
+        ((CompletableFuture<?>) transitionFoods.invoke(repository, foods, "claimed", "available", parties,
+                new boolean[batch])).join();
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The read-modify-write cycle behind POST /api/food/claim and /api/request/fulfill: body parse,
+ * lookup, compare-and-set, index update, journal append and the wait for it to be written.
+ * Each operation then moves the record back (claimed to available, fulfilled to pending) through
+ * the repository so the next pass finds it open again; that reverse transition is part of the
+ * measured time and costs about the same as the forward one.
+ *
+ * <p>fsync is off (fds.fsync=os) and journal compaction is disabled, so the numbers are the
+ * request path and not the disk. Records are visited with a large prime stride rather than in
+ * file order so lookups don't all hit warm cache lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os", "-Dfds.journal.compactBytes=9223372036854775807"})
+public class ClaimFulfillBenchmark {
+    private static final int STRIDE = 7919;
+
+    private final FakeExchange exchange = new FakeExchange();
+    private HttpHandler claim;
+    private HttpHandler fulfill;
+    private Object repository;
+    private MethodHandle findFood;
+    private MethodHandle transitionFood;
+    private MethodHandle findRequest;
+    private MethodHandle transitionRequest;
+    private String[] foodIds;
+    private String[] requestIds;
+    private int nextFood;
+    private int nextRequest;
+
+    @Setup
+    public void setUp(Dataset data) throws Throwable {
+        claim = (HttpHandler) Server.newInstance(Server.nested("ClaimFoodHandler"));
+        fulfill = (HttpHandler) Server.newInstance(Server.nested("FulfillRequestHandler"));
+        repository = data.repository;
+        Class<?> repositoryClass = repository.getClass();
+        Class<?> food = Server.nested("FoodItem");
+        Class<?> request = Server.nested("DonationRequest");
+        findFood = Server.virtualMethod(repositoryClass, "findFood", food, String.class);
+        transitionFood = Server.virtualMethod(repositoryClass, "transitionFood", CompletableFuture.class,
+                food, String.class, String.class, String.class);
+        findRequest = Server.virtualMethod(repositoryClass, "findRequest", request, String.class);
+        transitionRequest = Server.virtualMethod(repositoryClass, "transitionRequest", CompletableFuture.class,
+                request, String.class, String.class, String.class);
+        foodIds = data.availableFoodIds;
+        requestIds = data.pendingRequestIds;
+
+        if (claimFood() != 200 || fulfillRequest() != 200) {
+            throw new IllegalStateException("Claim or fulfill did not succeed against the generated data");
+        }
+    }
+
+    @Benchmark
+    public int claimFood() throws Throwable {
+        String id = foodIds[nextFood];
+        nextFood = (nextFood + STRIDE) % foodIds.length;
+        byte[] body = ("{\"foodId\":\"" + id + "\",\"receiver\":\"receiver1\"}").getBytes(StandardCharsets.UTF_8);
+        claim.handle(exchange.reset("POST", "/api/food/claim", body));
+
+        Object item = findFood.invoke(repository, id);
+        ((CompletableFuture<?>) transitionFood.invoke(repository, item, "claimed", "available", (String) null)).join();
+        return exchange.getResponseCode();
+    }
+
+    @Benchmark
+    public int fulfillRequest() throws Throwable {
+        String id = requestIds[nextRequest];
+        nextRequest = (nextRequest + STRIDE) % requestIds.length;
+        byte[] body = ("{\"requestId\":\"" + id + "\",\"donor\":\"donor1\"}").getBytes(StandardCharsets.UTF_8);
+        fulfill.handle(exchange.reset("POST", "/api/request/fulfill", body));
+
+        Object request = findRequest.invoke(repository, id);
+        ((CompletableFuture<?>) transitionRequest.invoke(repository, request, "fulfilled", "pending", (String) null)).join();
+        return exchange.getResponseCode();
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * users.txt, food.txt and requests.txt with {@code records} lines each, written to a temporary
+ * directory and loaded into FoodDonationServer's repository through -Dfds.dataDir.
+ *
+ * <p>Half the food is available and half claimed, half the requests pending and half fulfilled.
+ * Donators and receivers are drawn from 1000 names each, so a per-user list holds records/1000
+ * items whatever the size. Food names and request food types cycle through {@link #KINDS}, so
+ * the matching engine sees records/(2 * KINDS.length) open records per kind. Food pickup points
+ * are spread uniformly over a {@link #AREA_DEGREES} square from ({@link #SOUTH}, {@link #WEST}),
+ * roughly the size of Karachi. Every user's password is {@link #PASSWORD}, stored as one shared
+ * hash so setup doesn't spend a PBKDF2 derivation per user. The server reads fds.dataDir once,
+ * when its class initializes, so every trial needs its own JVM: keep forks at 1 or more.
+ */
+@State(Scope.Benchmark)
+public class Dataset {
+    static final int PARTIES = 1000;
+    static final String PASSWORD = "pw";
+    static final double SOUTH = 24.75;
+    static final double WEST = 66.95;
+    static final double AREA_DEGREES = 0.3;
+    static final String[] KINDS = {"rice", "bread", "milk", "meals", "lentils", "flour", "fruit", "vegetables"};
+
+    @Param({"1000", "100000", "1000000"})
+    public int records;
+
+    Path dir;
+    Object repository;
+    private Object writer;
+    // Ids whose record starts out available / pending; benchmarks that change them put them back
+    String[] availableFoodIds;
+    String[] pendingRequestIds;
+
+    static String foodId(int i) {
+        return String.format("f%07x", i);
+    }
+
+    static String requestId(int i) {
+        return String.format("r%07x", i);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        dir = Files.createTempDirectory("fds-bench");
+        availableFoodIds = new String[(records + 1) / 2];
+        pendingRequestIds = new String[(records + 1) / 2];
+        // Hashing only touches the nested Passwords class, so FoodDonationServer stays uninitialized
+        String hash = (String) Server.staticMethod(Server.nested("Passwords"), "hash", String.class, String.class)
+                .invoke(PASSWORD);
+        Random random = new Random(42);
+        try (BufferedWriter users = writer("users.txt");
+             BufferedWriter food = writer("food.txt");
+             BufferedWriter requests = writer("requests.txt")) {
+            for (int i = 0; i < records; i++) {
+                int party = i % PARTIES;
+                String kind = KINDS[(i / 2) % KINDS.length];
+                String position = "|" + (SOUTH + random.nextDouble() * AREA_DEGREES) +
+                        "|" + (WEST + random.nextDouble() * AREA_DEGREES);
+                users.write("user" + i + "|" + hash + "|" + (i % 2 == 0 ? "donator" : "receiver") + "\n");
+                if (i % 2 == 0) {
+                    availableFoodIds[i / 2] = foodId(i);
+                    pendingRequestIds[i / 2] = requestId(i);
+                    food.write(foodId(i) + "|donor" + party + "|" + kind + "|5 kg|Saddar|available|" + position + "\n");
+                    requests.write(requestId(i) + "|receiver" + party + "|" + kind + "|4 people|pending\n");
+                } else {
+                    food.write(foodId(i) + "|donor" + party + "|" + kind + "|5 kg|Saddar|claimed|receiver" + party + position + "\n");
+                    requests.write(requestId(i) + "|receiver" + party + "|" + kind + "|4 people|fulfilled|donor" + party + "\n");
+                }
+            }
+        }
+
+        System.setProperty("fds.dataDir", dir.toString());
+        Class<?> server = Class.forName("FoodDonationServer");
+        if (!dir.toString().equals(Server.staticField(server, "DATA_DIR"))) {
+            throw new IllegalStateException("FoodDonationServer was initialized before this dataset; run with -f 1 or more");
+        }
+        repository = Server.staticField(server, "repository");
+        writer = Server.staticField(server, "writer");
+        Server.virtualMethod(repository.getClass(), "load", void.class).invoke(repository);
+        Server.virtualMethod(writer.getClass(), "start", void.class).invoke(writer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        MethodHandle close = Server.virtualMethod(writer.getClass(), "close", void.class);
+        close.invoke(writer);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private BufferedWriter writer(String name) throws IOException {
+        return Files.newBufferedWriter(dir.resolve(name), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * GET /api/food/list and /api/request/list through the real handlers: index lookup, paging and
+ * JSON streaming, with the response counted and discarded instead of sent. "all" is the
+ * unfiltered list (every available item for food), "page" its first 50 records and "party" one
+ * donator's food or one receiver's requests.
+ *
+ * <p>{@code cache=hit} serves the page from the list cache as it would be between changes;
+ * {@code cache=miss} bumps the collection's version first, as any change does, so every call
+ * builds, checksums and caches the page anew. "all" is larger than the cache keeps at 100k records
+ * and up, and is streamed either way.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os"})
+public class ListBenchmark {
+    private static final byte[] NO_BODY = new byte[0];
+
+    @Param({"all", "page", "party"})
+    public String query;
+
+    @Param({"hit", "miss"})
+    public String cache;
+
+    private final FakeExchange exchange = new FakeExchange();
+    private HttpHandler foodList;
+    private HttpHandler requestList;
+    private String foodUri;
+    private String requestUri;
+    private AtomicLong foodVersion;
+    private AtomicLong requestVersion;
+    private boolean invalidate;
+
+    @Setup
+    public void setUp(Dataset data) throws Throwable {
+        foodList = (HttpHandler) Server.newInstance(Server.nested("ListFoodHandler"));
+        requestList = (HttpHandler) Server.newInstance(Server.nested("ListRequestsHandler"));
+        switch (query) {
+            case "all":
+                foodUri = "/api/food/list";
+                requestUri = "/api/request/list";
+                break;
+            case "page":
+                foodUri = "/api/food/list?limit=50";
+                requestUri = "/api/request/list?limit=50";
+                break;
+            default:
+                foodUri = "/api/food/list?donator=donor7";
+                requestUri = "/api/request/list?receiver=receiver7";
+        }
+        Class<?> repository = data.repository.getClass();
+        foodVersion = (AtomicLong) Server.getter(repository, "foodVersion", AtomicLong.class).invoke(data.repository);
+        requestVersion = (AtomicLong) Server.getter(repository, "requestVersion", AtomicLong.class)
+                .invoke(data.repository);
+        invalidate = "miss".equals(cache);
+    }
+
+    @Benchmark
+    public long listFood() throws Throwable {
+        if (invalidate) foodVersion.incrementAndGet();
+        foodList.handle(exchange.reset("GET", foodUri, NO_BODY));
+        return exchange.bytesWritten;
+    }
+
+    @Benchmark
+    public long listRequests() throws Throwable {
+        if (invalidate) requestVersion.incrementAndGet();
+        requestList.handle(exchange.reset("GET", requestUri, NO_BODY));
+        return exchange.bytesWritten;
+    }
+}
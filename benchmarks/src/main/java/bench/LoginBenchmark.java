@@ -0,0 +1,51 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * POST /api/login through the real handler: body parse, user lookup, password check on the
+ * hashing pool, session token and response. Users are visited with a large prime stride so
+ * consecutive lookups land far apart in the map.
+ *
+ * <p>The stored hashes use {@code fds.auth.iterations=1000} so the lookup and handler overhead
+ * stay visible; at the default iteration count PBKDF2 itself dominates every login.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os", "-Dfds.auth.iterations=1000"})
+public class LoginBenchmark {
+    private static final int STRIDE = 7919;
+
+    private final FakeExchange exchange = new FakeExchange();
+    private HttpHandler login;
+    private int users;
+    private int next;
+
+    @Setup
+    public void setUp(Dataset data) throws IOException {
+        login = (HttpHandler) Server.newInstance(Server.nested("LoginHandler"));
+        users = data.records;
+        if (login() != 200) {
+            throw new IllegalStateException("Login did not succeed against the generated data");
+        }
+    }
+
+    @Benchmark
+    public int login() throws IOException {
+        int user = next;
+        next = (next + STRIDE) % users;
+        byte[] body = ("{\"username\":\"user" + user + "\",\"password\":\"" + Dataset.PASSWORD + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        login.handle(exchange.reset("POST", "/api/login", body));
+        return exchange.getResponseCode();
+    }
+}
@@ -0,0 +1,97 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The matching engine's work for one arrival in commit mode (fds.matching=commit): find the
+ * oldest open record of the same kind, claim the food, fulfill the request and queue both
+ * journal entries. Run across the dataset sizes, this is the match rate as the backlog of open
+ * records grows from a few hundred to half a million.
+ *
+ * <p>Arrivals are records already in the dataset, visited with a large prime stride. Each
+ * operation then reopens the pair (claimed to available, fulfilled to pending) through the
+ * repository so the backlog stays the same size; like in ClaimFulfillBenchmark those reverse
+ * transitions are part of the measured time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os", "-Dfds.journal.compactBytes=9223372036854775807",
+        "-Dfds.matching=commit"})
+public class MatchBenchmark {
+    private static final int STRIDE = 7919;
+
+    private Object engine;
+    private Object repository;
+    private MethodHandle matchFood;
+    private MethodHandle matchRequest;
+    private MethodHandle matchedFood;
+    private MethodHandle matchedRequest;
+    private MethodHandle findFood;
+    private MethodHandle findRequest;
+    private MethodHandle transitionFood;
+    private MethodHandle transitionRequest;
+    private String[] foodIds;
+    private String[] requestIds;
+    private int nextFood;
+    private int nextRequest;
+
+    @Setup
+    public void setUp(Dataset data) throws Throwable {
+        Class<?> server = Class.forName("FoodDonationServer");
+        engine = Server.staticField(server, "matcher");
+        repository = data.repository;
+        Class<?> engineClass = engine.getClass();
+        Class<?> match = Server.nested("MatchingEngine$Match");
+        Class<?> food = Server.nested("FoodItem");
+        Class<?> request = Server.nested("DonationRequest");
+        matchFood = Server.virtualMethod(engineClass, "match", match, food);
+        matchRequest = Server.virtualMethod(engineClass, "match", match, request);
+        matchedFood = Server.getter(match, "food", food);
+        matchedRequest = Server.getter(match, "request", request);
+        Class<?> repositoryClass = repository.getClass();
+        findFood = Server.virtualMethod(repositoryClass, "findFood", food, String.class);
+        findRequest = Server.virtualMethod(repositoryClass, "findRequest", request, String.class);
+        transitionFood = Server.virtualMethod(repositoryClass, "transitionFood", CompletableFuture.class,
+                food, String.class, String.class, String.class);
+        transitionRequest = Server.virtualMethod(repositoryClass, "transitionRequest", CompletableFuture.class,
+                request, String.class, String.class, String.class);
+        foodIds = data.availableFoodIds;
+        requestIds = data.pendingRequestIds;
+
+        if (!foodArrives() || !requestArrives()) {
+            throw new IllegalStateException("No match found in the generated data");
+        }
+    }
+
+    @Benchmark
+    public boolean foodArrives() throws Throwable {
+        Object food = findFood.invoke(repository, foodIds[nextFood]);
+        nextFood = (nextFood + STRIDE) % foodIds.length;
+        return reopen(matchFood.invoke(engine, food));
+    }
+
+    @Benchmark
+    public boolean requestArrives() throws Throwable {
+        Object request = findRequest.invoke(repository, requestIds[nextRequest]);
+        nextRequest = (nextRequest + STRIDE) % requestIds.length;
+        return reopen(matchRequest.invoke(engine, request));
+    }
+
+    private boolean reopen(Object match) throws Throwable {
+        if (match == null) {
+            return false;
+        }
+        Object food = matchedFood.invoke(match);
+        Object request = matchedRequest.invoke(match);
+        ((CompletableFuture<?>) transitionFood.invoke(repository, food, "claimed", "available", (String) null)).join();
+        ((CompletableFuture<?>) transitionRequest.invoke(repository, request, "fulfilled", "pending", (String) null)).join();
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * GET /api/food/nearby through the real handler at random points inside the dataset's area:
+ * grid lookup, distance checks and JSON streaming of the closest 20 available items within
+ * {@code radius} km. The dataset spreads records/2 available items over about 1000 km², so the
+ * density grows with the size while a query should keep reading only the cells around its point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dfds.fsync=os"})
+public class NearbyBenchmark {
+    private static final byte[] NO_BODY = new byte[0];
+
+    @Param({"2", "25"})
+    public double radius;
+
+    private final FakeExchange exchange = new FakeExchange();
+    private final SplittableRandom random = new SplittableRandom(7);
+    private HttpHandler nearby;
+
+    @Setup
+    public void setUp(Dataset data) throws IOException {
+        nearby = (HttpHandler) Server.newInstance(Server.nested("NearbyFoodHandler"));
+        if (nearby() == 0 || exchange.getResponseCode() != 200) {
+            throw new IllegalStateException("Nearby query did not succeed against the generated data");
+        }
+    }
+
+    @Benchmark
+    public long nearby() throws IOException {
+        double lat = Dataset.SOUTH + random.nextDouble() * Dataset.AREA_DEGREES;
+        double lon = Dataset.WEST + random.nextDouble() * Dataset.AREA_DEGREES;
+        nearby.handle(exchange.reset("GET", "/api/food/nearby?lat=" + lat + "&lon=" + lon + "&radius=" + radius
+                + "&limit=20", NO_BODY));
+        return exchange.bytesWritten;
+    }
+}
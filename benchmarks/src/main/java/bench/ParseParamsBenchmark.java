@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request body parsing: the split/replaceAll parseParams the handlers used to call against
+ * the single-pass JsonBodyParser that replaced it. Run with -prof gc to compare allocation
+ * per call as well as time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseParamsBenchmark {
+    private static final MethodHandle PARSE = Server.staticMethod(Server.nested("JsonBodyParser"),
+            "parse", Map.class, InputStream.class, String[].class);
+
+    @Param({"login", "addFood", "addFoodWithPunctuation"})
+    public String body;
+
+    private byte[] bytes;
+    private String[] fields;
+
+    @Setup
+    public void setUp() {
+        String json;
+        switch (body) {
+            case "login":
+                json = "{\"username\":\"Waniya\",\"password\":\"wan\"}";
+                fields = new String[] {"username", "password"};
+                break;
+            case "addFood":
+                json = "{\"donator\":\"Laiba\",\"name\":\"Rice\",\"quantity\":\"10 kg\",\"location\":\"SSUET\"}";
+                fields = new String[] {"donator", "name", "quantity", "location"};
+                break;
+            default:
+                // The split parser mangles this one; it is here to price the escape handling
+                json = "{\"donator\":\"Laiba\",\"name\":\"Biryani \\\"family\\\" pack\",\"quantity\":\"10 kg\"," +
+                        "\"location\":\"SSUET, Block A: Gate 2\"}";
+                fields = new String[] {"donator", "name", "quantity", "location"};
+        }
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Map<String, String> splitParser() {
+        return legacyParseParams(new String(bytes));
+    }
+
+    @Benchmark
+    public Object singlePassParser() throws Throwable {
+        return PARSE.invoke((InputStream) new ByteArrayInputStream(bytes), fields);
+    }
+
+    // FoodDonationServer.parseParams as it was before JsonBodyParser, kept as the baseline
+    static Map<String, String> legacyParseParams(String body) {
+        Map<String, String> params = new HashMap<>();
+        if (body.startsWith("{")) {
+            // Simple JSON parsing
+            body = body.substring(1, body.length() - 1);
+            for (String pair : body.split(",")) {
+                String[] kv = pair.split(":");
+                if (kv.length == 2) {
+                    String key = kv[0].replaceAll("\"", "").trim();
+                    String value = kv[1].replaceAll("\"", "").trim();
+                    params.put(key, value);
+                }
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Repository.load() over the dataset's files into a fresh repository, as at server startup.
+ * "text" parses every line of the data files, as a server without a snapshot does; "snapshot"
+ * starts from snapshot.bin, written once in setup by a compaction, and has no newer lines or
+ * journal entries to parse on top. "slots" reads food.slots and requests.slots (and their string
+ * heaps), copied from the dataset once in setup as migrate-slots does; users still come from
+ * users.txt. Each load builds a second copy of the data next to the dataset's own, so the 1M runs
+ * need the larger heap below.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dfds.fsync=os", "-Dfds.journal.compactBytes=9223372036854775807"})
+public class StartupBenchmark {
+    @Param({"text", "snapshot", "slots"})
+    public String source;
+
+    private MethodHandle newRepository;
+    private MethodHandle newJournal;
+    private MethodHandle newSlotRepository;
+    private MethodHandle foodSlots;
+    private MethodHandle requestSlots;
+    private MethodHandle load;
+    private String journalFile;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp(Dataset data) throws Throwable {
+        Class<?> repository = Server.nested("Repository");
+        Class<?> journal = Server.nested("Journal");
+        newRepository = Server.constructor(repository, journal);
+        newJournal = Server.constructor(journal, String.class);
+        load = Server.virtualMethod(repository, "load", void.class);
+        journalFile = data.dir.resolve("journal.log").toString();
+        dir = data.dir;
+
+        // Nothing closed before Long.MIN_VALUE, so the compaction archives nothing
+        MethodHandle compact = Server.virtualMethod(repository, "compact", CompletableFuture.class, long.class);
+        ((CompletableFuture<?>) compact.invoke(data.repository, Long.MIN_VALUE)).get();
+        if (!Files.exists(data.dir.resolve("snapshot.bin"))) {
+            throw new IllegalStateException("Compaction wrote no snapshot");
+        }
+
+        Class<?> slotStore = Server.nested("SlotStore");
+        newSlotRepository = Server.constructor(repository, journal, slotStore, slotStore);
+        foodSlots = Server.staticMethod(slotStore, "food", slotStore, String.class, String.class);
+        requestSlots = Server.staticMethod(slotStore, "requests", slotStore, String.class, String.class);
+        if ("slots".equals(source)) {
+            Server.staticMethod(Class.forName("FoodDonationServer"), "copyToSlots", void.class, repository,
+                    String.class, String.class, String.class, String.class)
+                    .invoke(data.repository, file("food.slots"), file("food.strings"),
+                            file("requests.slots"), file("requests.strings"));
+        }
+    }
+
+    @Benchmark
+    public Object load() throws Throwable {
+        if ("slots".equals(source)) {
+            Object repository = newSlotRepository.invoke(null, foodSlots.invoke(file("food.slots"), file("food.strings")),
+                    requestSlots.invoke(file("requests.slots"), file("requests.strings")));
+            load.invoke(repository);
+            return repository;
+        }
+        // Without a journal the repository is in rewrite mode, which never reads the snapshot
+        Object repository = newRepository.invoke("snapshot".equals(source) ? newJournal.invoke(journalFile) : null);
+        load.invoke(repository);
+        return repository;
+    }
+
+    private String file(String name) {
+        return dir.resolve(name).toString();
+    }
+}
@@ -0,0 +1,131 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the fixed-pool and virtual-thread executors as the number of concurrent clients grows.
+ *
+ * <p>Every client adds food items in a closed loop. Each add parks its handler thread until the
+ * group-commit writer's next timed fsync ({@code fds.fsync=interval}), standing in for a slow disk.
+ * A pool of N threads therefore tops out near N adds per fsync interval however many clients are
+ * waiting, while a thread per exchange lets every waiting add share the same fsync.
+ *
+ * <pre>
+ * java -cp loadtest/target/loadtest.jar [-Dmodes=fixed,virtual] [-Dclients=10,50,200,800]
+ *      [-DdurationSec=5] [-DfsyncIntervalMs=20] loadtest.ConcurrencyScaling
+ * </pre>
+ *
+ * Virtual threads need the JVM running this tool (the server is started with the same java) to be
+ * Java 21 or later; on older JDKs the server falls back to its pool and says so in the executor column.
+ */
+public final class ConcurrencyScaling {
+    private static final String ADD_FOOD =
+            "{\"donator\":\"loadtest\",\"name\":\"Rice\",\"quantity\":\"5 kg\",\"location\":\"Saddar\"}";
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = System.getProperty("modes", "fixed,virtual").split(",");
+        int[] clientCounts = Arrays.stream(System.getProperty("clients", "10,50,200,800").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.getLong("durationSec", 5));
+        long fsyncIntervalMs = Long.getLong("fsyncIntervalMs", 20);
+
+        List<String> rows = new ArrayList<>();
+        for (String mode : modes) {
+            try (ServerProcess server = ServerProcess.start("fds.executor=" + mode,
+                    "fds.fsync=interval", "fds.fsync.intervalMs=" + fsyncIntervalMs)) {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port + "/api/food/add"))
+                        .POST(HttpRequest.BodyPublishers.ofString(ADD_FOOD))
+                        .build();
+                for (int clients : clientCounts) {
+                    Result result = run(client, request, clients, durationMs);
+                    rows.add(String.format("%-8s %-28s %8d %10.0f %9.1f %9.1f %7d", mode, server.executor, clients,
+                            result.throughput(), result.percentile(50), result.percentile(99), result.errors));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %-28s %8s %10s %9s %9s %7s%n",
+                "mode", "executor", "clients", "req/s", "p50 ms", "p99 ms", "errors");
+        rows.forEach(System.out::println);
+    }
+
+    private static Result run(HttpClient client, HttpRequest request, int clients, long durationMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long[][] latencies = new long[clients][];
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    long begin = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = System.nanoTime() - begin;
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                latencies[index] = Arrays.copyOf(samples, count);
+                done.countDown();
+            }, "client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Result(all, errors.get(), elapsed);
+    }
+
+    private static final class Result {
+        final long[] latencies;
+        final long errors;
+        final long elapsedNanos;
+
+        Result(long[] latencies, long errors, long elapsedNanos) {
+            this.latencies = latencies;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double throughput() {
+            return latencies.length * 1e9 / elapsedNanos;
+        }
+
+        double percentile(int p) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1e6;
+        }
+    }
+}
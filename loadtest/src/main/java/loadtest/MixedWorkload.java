@@ -0,0 +1,494 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load against a fresh FoodDonationServer with a realistic mix of donors and receivers,
+ * followed by consistency checks.
+ *
+ * <p>Scenarios, picked at random by weight ({@code -Dmix}):
+ * <ul>
+ *   <li>browse: a receiver lists the first page of available food and claims one item from it</li>
+ *   <li>addFood / addRequest: a donor posts food, a receiver posts a request</li>
+ *   <li>fulfill: a donor lists pending requests and fulfills one</li>
+ *   <li>race: a new request is fulfilled by {@code raceWidth} donors at once</li>
+ * </ul>
+ * Everyone browses the same first page, so claims and fulfills race constantly; losing a race is
+ * a 404 and is reported as "lost", not as an error.
+ *
+ * <p>{@code -Dmodel=closed} runs {@code clients} users that each wait for a reply (plus
+ * {@code thinkMs}) before their next scenario. {@code -Dmodel=open} starts scenarios at a Poisson
+ * rate of {@code rate} per second whether or not earlier ones finished, and measures latency from
+ * the intended start so a stalled server can't hide its queueing (coordinated omission).
+ *
+ * <p>Afterwards the harness checks that no food item or request was won twice, that the server's
+ * lists agree with the replies the clients saw, and that all of it survives a restart. The exit
+ * status is 1 when a check fails or the server answered with a 5xx other than 503.
+ *
+ * <pre>
+ * java -cp loadtest/target/loadtest.jar [-Dmodel=closed|open] [-Dclients=50] [-DthinkMs=0]
+ *      [-Drate=500] [-DmaxInFlight=2000] [-DdurationSec=20] [-DraceWidth=8]
+ *      [-Dmix=browse:45,addFood:25,addRequest:15,fulfill:10,race:5]
+ *      [-Dserver=fds.fsync=interval,fds.executor=fixed] loadtest.MixedWorkload
+ * </pre>
+ */
+public final class MixedWorkload {
+    private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+    private static final Pattern ID_AND_STATUS = Pattern.compile("\\{\"id\":\"([^\"]*)\"[^}]*?\"status\":\"([^\"]*)\"");
+    private static final int PARTIES = 50;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private volatile String base;
+    private final int raceWidth;
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    // What the clients were told; checked against the server afterwards
+    private final Set<String> addedFood = ConcurrentHashMap.newKeySet();
+    private final Set<String> addedRequests = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> claimedBy = new ConcurrentHashMap<>();
+    private final Map<String, String> fulfilledBy = new ConcurrentHashMap<>();
+    // Records whose outcome the client never learned (connection failed mid-request)
+    private final Set<String> uncertain = ConcurrentHashMap.newKeySet();
+    private final LongAdder uncertainAdds = new LongAdder();
+    private final List<String> violations = new ArrayList<>();
+
+    private MixedWorkload(int port, int raceWidth) {
+        this.base = "http://localhost:" + port + "/api";
+        this.raceWidth = raceWidth;
+        for (String name : Arrays.asList("food/list", "food/claim", "food/add", "request/list", "request/add",
+                "request/fulfill")) {
+            endpoints.put(name, new Endpoint());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String model = System.getProperty("model", "closed");
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("durationSec", 20));
+        Map<String, Integer> mix = parseMix(System.getProperty("mix", "browse:45,addFood:25,addRequest:15,fulfill:10,race:5"));
+        String[] serverProperties = Arrays.stream(System.getProperty("server", "fds.fsync=interval").split(","))
+                .map(String::trim).filter(p -> !p.isEmpty()).toArray(String[]::new);
+
+        ServerProcess server = ServerProcess.start(serverProperties);
+        try {
+            MixedWorkload workload = new MixedWorkload(server.port, Integer.getInteger("raceWidth", 8));
+            workload.preload(Integer.getInteger("preload", 100));
+
+            long elapsed;
+            if ("open".equals(model)) {
+                elapsed = workload.runOpen(mix, Integer.getInteger("rate", 500), Integer.getInteger("maxInFlight", 2000),
+                        durationNanos);
+            } else if ("closed".equals(model)) {
+                elapsed = workload.runClosed(mix, Integer.getInteger("clients", 50), Long.getLong("thinkMs", 0),
+                        durationNanos);
+            } else {
+                throw new IllegalArgumentException("model must be closed or open: " + model);
+            }
+            workload.report(model, server.executor, elapsed);
+
+            Map<String, String> food = workload.statuses("/food/list?status=all");
+            Map<String, String> requests = workload.statuses("/request/list");
+            workload.checkState(food, requests);
+            server = server.restart();
+            workload.base = "http://localhost:" + server.port + "/api";
+            workload.checkRestart("food", food, workload.statuses("/food/list?status=all"));
+            workload.checkRestart("request", requests, workload.statuses("/request/list"));
+
+            System.out.println();
+            if (workload.violations.isEmpty()) {
+                System.out.println("Invariants hold: " + food.size() + " food items, " + requests.size()
+                        + " requests, " + workload.claimedBy.size() + " claims, " + workload.fulfilledBy.size()
+                        + " fulfills, same after restart");
+            } else {
+                workload.violations.forEach(v -> System.out.println("VIOLATION: " + v));
+            }
+            if (!workload.violations.isEmpty() || workload.serverErrors() > 0) {
+                System.exit(1);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    // ---- load models ----
+
+    private long runClosed(Map<String, Integer> mix, int clients, long thinkMs, long durationNanos)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        scenario(pick(mix), System.nanoTime()).join();
+                        if (thinkMs > 0) {
+                            Thread.sleep(thinkMs);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private long runOpen(Map<String, Integer> mix, int rate, int maxInFlight, long durationNanos)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        LongAdder dropped = new LongAdder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        long next = start;
+        while (next < deadline) {
+            // Poisson arrivals: exponentially distributed gaps with mean 1/rate
+            next += (long) (-Math.log(1 - random.nextDouble()) * 1e9 / rate);
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!inFlight.tryAcquire()) {
+                dropped.increment();
+                continue;
+            }
+            scenario(pick(mix), next).whenComplete((ignored, error) -> inFlight.release());
+        }
+        inFlight.acquire(maxInFlight);
+        long elapsed = System.nanoTime() - start;
+        if (dropped.sum() > 0) {
+            System.out.println("Dropped " + dropped.sum() + " arrivals with " + maxInFlight + " already in flight");
+        }
+        return elapsed;
+    }
+
+    private static String pick(Map<String, Integer> mix) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int roll = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    // ---- scenarios ----
+
+    // start is when the scenario was meant to begin; its first request's latency counts from there
+    private CompletableFuture<Void> scenario(String name, long start) {
+        String donor = "donor" + ThreadLocalRandom.current().nextInt(PARTIES);
+        String receiver = "receiver" + ThreadLocalRandom.current().nextInt(PARTIES);
+        switch (name) {
+            case "browse":
+                return call("food/list", "GET", "/food/list?limit=20", null, start)
+                        .thenCompose(list -> claim(list, receiver));
+            case "addFood":
+                return addFood(donor, start);
+            case "addRequest":
+                return addRequest(receiver, start).thenAccept(id -> { });
+            case "fulfill":
+                return call("request/list", "GET", "/request/list?status=pending&limit=20", null, start)
+                        .thenCompose(list -> fulfill(list, donor));
+            case "race":
+                return addRequest(receiver, start).thenCompose(this::race);
+            default:
+                throw new IllegalArgumentException("Unknown scenario in mix: " + name);
+        }
+    }
+
+    private CompletableFuture<Void> claim(Response list, String receiver) {
+        String id = randomId(list);
+        if (id == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String body = "{\"foodId\":\"" + id + "\",\"receiver\":\"" + receiver + "\"}";
+        return call("food/claim", "POST", "/food/claim", body, System.nanoTime()).thenAccept(response -> {
+            if (response.status == 200 && claimedBy.putIfAbsent(id, receiver) != null) {
+                violation("food " + id + " claimed by both " + claimedBy.get(id) + " and " + receiver);
+            } else if (response.status < 0) {
+                uncertain.add(id);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> fulfill(Response list, String donor) {
+        String id = randomId(list);
+        return id == null ? CompletableFuture.completedFuture(null) : fulfill(id, donor);
+    }
+
+    private CompletableFuture<Void> fulfill(String id, String donor) {
+        String body = "{\"requestId\":\"" + id + "\",\"donor\":\"" + donor + "\"}";
+        return call("request/fulfill", "POST", "/request/fulfill", body, System.nanoTime()).thenAccept(response -> {
+            if (response.status == 200 && fulfilledBy.putIfAbsent(id, donor) != null) {
+                violation("request " + id + " fulfilled by both " + fulfilledBy.get(id) + " and " + donor);
+            } else if (response.status < 0) {
+                uncertain.add(id);
+            }
+        });
+    }
+
+    // Several donors fulfill the same fresh request at the same moment; at most one may win
+    private CompletableFuture<Void> race(String requestId) {
+        if (requestId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<?>[] racers = new CompletableFuture<?>[raceWidth];
+        for (int i = 0; i < raceWidth; i++) {
+            racers[i] = fulfill(requestId, "racer" + i);
+        }
+        return CompletableFuture.allOf(racers);
+    }
+
+    private CompletableFuture<Void> addFood(String donor, long start) {
+        String body = "{\"donator\":\"" + donor + "\",\"name\":\"Rice\",\"quantity\":\"5 kg\",\"location\":\"Saddar\"}";
+        return call("food/add", "POST", "/food/add", body, start).thenAccept(response -> {
+            String id = idOf(response);
+            if (id != null) {
+                addedFood.add(id);
+            } else if (response.status < 0) {
+                uncertainAdds.increment();
+            }
+        });
+    }
+
+    // Completes with the new request's id, or null if it wasn't added
+    private CompletableFuture<String> addRequest(String receiver, long start) {
+        String body = "{\"receiver\":\"" + receiver + "\",\"foodType\":\"meals\",\"quantity\":\"4 people\"}";
+        return call("request/add", "POST", "/request/add", body, start).thenApply(response -> {
+            String id = idOf(response);
+            if (id != null) {
+                addedRequests.add(id);
+            } else if (response.status < 0) {
+                uncertainAdds.increment();
+            }
+            return id;
+        });
+    }
+
+    private void preload(int count) {
+        CompletableFuture<?>[] adds = new CompletableFuture<?>[count * 2];
+        for (int i = 0; i < count; i++) {
+            adds[2 * i] = addFood("donor" + (i % PARTIES), System.nanoTime());
+            adds[2 * i + 1] = addRequest("receiver" + (i % PARTIES), System.nanoTime());
+        }
+        CompletableFuture.allOf(adds).join();
+        endpoints.values().forEach(Endpoint::reset);
+    }
+
+    // ---- HTTP ----
+
+    private static final class Response {
+        // -1 when the request failed without a reply
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private CompletableFuture<Response> call(String endpoint, String method, String path, String body, long start) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path)).timeout(Duration.ofSeconds(30));
+        request.method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString(body));
+        Endpoint stats = endpoints.get(endpoint);
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString()).handle((response, error) -> {
+            long latency = System.nanoTime() - start;
+            if (error != null) {
+                stats.record(-1, latency);
+                return new Response(-1, "");
+            }
+            stats.record(response.statusCode(), latency);
+            return new Response(response.statusCode(), response.body());
+        });
+    }
+
+    private static String randomId(Response list) {
+        if (list.status != 200) {
+            return null;
+        }
+        List<String> ids = new ArrayList<>();
+        Matcher m = ID.matcher(list.body);
+        while (m.find()) {
+            ids.add(m.group(1));
+        }
+        return ids.isEmpty() ? null : ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    private static String idOf(Response response) {
+        if (response.status != 200) {
+            return null;
+        }
+        Matcher m = ID.matcher(response.body);
+        return m.find() ? m.group(1) : null;
+    }
+
+    // ---- checks ----
+
+    private Map<String, String> statuses(String path) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + path)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException(path + " returned " + response.statusCode());
+        }
+        Map<String, String> statuses = new HashMap<>();
+        Matcher m = ID_AND_STATUS.matcher(response.body());
+        while (m.find()) {
+            statuses.put(m.group(1), m.group(2));
+        }
+        return statuses;
+    }
+
+    private void checkState(Map<String, String> food, Map<String, String> requests) {
+        for (String id : addedFood) {
+            String expected = claimedBy.containsKey(id) ? "claimed" : "available";
+            String actual = food.get(id);
+            if (actual == null) {
+                violation("food " + id + " was added but is missing");
+            } else if (!actual.equals(expected) && !uncertain.contains(id)) {
+                violation("food " + id + " is " + actual + ", clients saw it " + expected);
+            }
+        }
+        for (String id : addedRequests) {
+            String expected = fulfilledBy.containsKey(id) ? "fulfilled" : "pending";
+            String actual = requests.get(id);
+            if (actual == null) {
+                violation("request " + id + " was added but is missing");
+            } else if (!actual.equals(expected) && !uncertain.contains(id)) {
+                violation("request " + id + " is " + actual + ", clients saw it " + expected);
+            }
+        }
+        long unknown = food.keySet().stream().filter(id -> !addedFood.contains(id)).count()
+                + requests.keySet().stream().filter(id -> !addedRequests.contains(id)).count();
+        if (unknown > uncertainAdds.sum()) {
+            violation(unknown + " records exist that no client was told about (" + uncertainAdds.sum()
+                    + " adds had no reply)");
+        }
+    }
+
+    private void checkRestart(String kind, Map<String, String> before, Map<String, String> after) {
+        if (!before.equals(after)) {
+            long changed = before.entrySet().stream().filter(e -> !e.getValue().equals(after.get(e.getKey()))).count();
+            violation(kind + " list differs after restart: " + before.size() + " before, " + after.size()
+                    + " after, " + changed + " changed or missing");
+        }
+    }
+
+    private synchronized void violation(String message) {
+        violations.add(message);
+    }
+
+    // ---- reporting ----
+
+    private static final class Endpoint {
+        final Histogram latency = new Histogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder busy = new LongAdder();
+        final LongAdder serverErrors = new LongAdder();
+        final LongAdder otherErrors = new LongAdder();
+        final LongAdder ioErrors = new LongAdder();
+        volatile Histogram window = latency;
+
+        void record(int status, long nanos) {
+            window.recordNanos(nanos);
+            if (status >= 200 && status < 300) {
+                ok.increment();
+            } else if (status == 404) {
+                lost.increment();
+            } else if (status == 503) {
+                busy.increment();
+            } else if (status >= 500) {
+                serverErrors.increment();
+            } else if (status < 0) {
+                ioErrors.increment();
+            } else {
+                otherErrors.increment();
+            }
+        }
+
+        long total() {
+            return ok.sum() + lost.sum() + busy.sum() + serverErrors.sum() + otherErrors.sum() + ioErrors.sum();
+        }
+
+        // Forgets the preload so the report covers the measured run only
+        void reset() {
+            window = new Histogram();
+            for (LongAdder counter : Arrays.asList(ok, lost, busy, serverErrors, otherErrors, ioErrors)) {
+                counter.reset();
+            }
+        }
+    }
+
+    private long serverErrors() {
+        return endpoints.values().stream().mapToLong(e -> e.serverErrors.sum()).sum();
+    }
+
+    private void report(String model, String executor, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%s model, %.1f s, server executor: %s%n", model, seconds, executor);
+        System.out.printf("%-16s %8s %8s %8s %7s %7s %9s %9s %9s %9s%n",
+                "endpoint", "req/s", "ok", "lost", "503", "errors", "err rate", "p50 ms", "p99 ms", "p999 ms");
+        long total = 0;
+        long errors = 0;
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            Endpoint e = entry.getValue();
+            long count = e.total();
+            long failed = e.busy.sum() + e.serverErrors.sum() + e.otherErrors.sum() + e.ioErrors.sum();
+            total += count;
+            errors += failed;
+            System.out.printf("%-16s %8.0f %8d %8d %7d %7d %8.2f%% %9.2f %9.2f %9.2f%n", entry.getKey(),
+                    count / seconds, e.ok.sum(), e.lost.sum(), e.busy.sum(),
+                    e.serverErrors.sum() + e.otherErrors.sum() + e.ioErrors.sum(),
+                    count == 0 ? 0 : 100.0 * failed / count,
+                    e.window.percentileMillis(0.5), e.window.percentileMillis(0.99), e.window.percentileMillis(0.999));
+        }
+        System.out.printf("%-16s %8.0f   error rate %.2f%% (503s included; lost races are not errors)%n",
+                "total", total / seconds, total == 0 ? 0 : 100.0 * errors / total);
+    }
+
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            mix.put(kv[0], Integer.parseInt(kv[1]));
+        }
+        return mix;
+    }
+}
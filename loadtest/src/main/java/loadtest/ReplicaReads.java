@@ -0,0 +1,300 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * List reads against a primary alone and then spread over the primary and its replicas, while a
+ * writer keeps changing food, followed by a check that every replica ends up with the primary's
+ * lists, before and after the primary restarts.
+ *
+ * <p>Starts a primary and {@code replicas} replicas of it as separate processes on this machine
+ * and preloads {@code preload} food items, with a request after every 500. Each phase then runs
+ * {@code clients} closed-loop readers of /api/food/list for {@code durationSec}. Meanwhile the
+ * writer adds an item and claims it {@code writesPerSec} times a second, through a replica when
+ * there is one, so writes are forwarded to the primary and list caches keep being invalidated.
+ * During the spread phase the replicas' fds_replica_lag_* metrics are sampled and the worst values
+ * are reported. The exit status is 1 when a replica's lists still differ from the primary's after
+ * writes stop.
+ *
+ * <p>The primary then restarts on the same data and replication port. Loading numbers its records
+ * afresh, food first, so the food after the first request and every request change seq. The
+ * replicas reconnect and take a new copy, and their lists are compared again. Every comparison
+ * covers the whole list and every page of it with the cursor that follows, so a record held at
+ * another seq than the primary's counts as a difference.
+ *
+ * <pre>
+ * java -cp loadtest/target/loadtest.jar [-Dreplicas=2] [-Dclients=32] [-DdurationSec=10]
+ *      [-Dpreload=1000] [-DwritesPerSec=50] loadtest.ReplicaReads
+ * </pre>
+ *
+ * All processes share this machine's cores, so the spread phase shows what replicas add on one
+ * box; on separate machines each replica brings its own.
+ */
+public final class ReplicaReads {
+    private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+    private static final Pattern LAG = Pattern.compile("^fds_replica_lag_(entries|milliseconds) (\\d+)$", Pattern.MULTILINE);
+    private static final String FOOD = "{\"donator\":\"loadtest\",\"name\":\"Rice\",\"quantity\":\"5 kg\",\"location\":\"Saddar\"}";
+    private static final String REQUEST = "{\"receiver\":\"loadtest\",\"foodType\":\"Rice\",\"quantity\":\"1\"}";
+    private static final int PAGE = 100;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private volatile long maxLagEntries;
+    private volatile long maxLagMillis;
+
+    public static void main(String[] args) throws Exception {
+        int replicaCount = Integer.getInteger("replicas", 2);
+        int clients = Integer.getInteger("clients", 32);
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("durationSec", 10));
+        int writesPerSec = Integer.getInteger("writesPerSec", 50);
+
+        List<ServerProcess> replicas = new ArrayList<>();
+        // A fixed port, so the replicas find the primary again after it restarts
+        ServerProcess primary = ServerProcess.start("fds.replication.port=" + freePort(), "fds.fsync=interval");
+        try {
+            try {
+                for (int i = 0; i < replicaCount; i++) {
+                    replicas.add(ServerProcess.start("fds.replicaOf=127.0.0.1:" + primary.replicationPort));
+                }
+                ReplicaReads test = new ReplicaReads();
+                test.preload(primary.port, Integer.getInteger("preload", 1000));
+                int writePort = replicas.isEmpty() ? primary.port : replicas.get(0).port;
+
+                int[] all = new int[replicas.size() + 1];
+                all[0] = primary.port;
+                for (int i = 0; i < replicas.size(); i++) {
+                    all[i + 1] = replicas.get(i).port;
+                }
+                List<String> rows = new ArrayList<>();
+                rows.add(test.phase("primary only", new int[] {primary.port}, clients, durationNanos, writePort,
+                        writesPerSec, new int[0]));
+                int[] replicaPorts = new int[replicas.size()];
+                System.arraycopy(all, 1, replicaPorts, 0, replicaPorts.length);
+                rows.add(test.phase("primary + " + replicas.size() + " replicas", all, clients, durationNanos,
+                        writePort, writesPerSec, replicaPorts));
+
+                System.out.println();
+                System.out.printf("%-24s %8s %10s %9s %9s %7s%n", "reads", "clients", "req/s", "p50 ms", "p99 ms",
+                        "errors");
+                rows.forEach(System.out::println);
+                System.out.println();
+                System.out.println("Worst replica lag: " + test.maxLagEntries + " changes, " + test.maxLagMillis
+                        + " ms; " + test.writeErrors.get() + " failed writes");
+
+                List<String> differences = test.compare(primary.port, replicaPorts);
+                System.out.println("Restarting the primary");
+                primary = primary.restart();
+                for (String difference : test.compare(primary.port, replicaPorts)) {
+                    differences.add("after the restart, " + difference);
+                }
+                differences.forEach(d -> System.out.println("DIFFERENCE: " + d));
+                if (differences.isEmpty()) {
+                    System.out.println("Every replica matches the primary, before and after its restart");
+                } else {
+                    System.exit(1);
+                }
+            } finally {
+                for (ServerProcess replica : replicas) {
+                    replica.close();
+                }
+            }
+        } finally {
+            primary.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void preload(int port, int count) throws IOException, InterruptedException {
+        for (int added = 0; added < count; added += 500) {
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = added; i < Math.min(count, added + 500); i++) {
+                if (batch.length() > 1) {
+                    batch.append(',');
+                }
+                batch.append(FOOD);
+            }
+            HttpResponse<String> response = send(port, "POST", "/api/food/add-batch", batch.append(']').toString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Preloading failed with " + response.statusCode() + ": " + response.body());
+            }
+            response = send(port, "POST", "/api/request/add", REQUEST);
+            if (response.statusCode() != 200) {
+                throw new IOException("Preloading failed with " + response.statusCode() + ": " + response.body());
+            }
+        }
+    }
+
+    // Reads spread round-robin over ports, with the writer and (for lagPorts) the lag sampler alongside
+    private String phase(String name, int[] ports, int clients, long durationNanos, int writePort, int writesPerSec,
+            int[] lagPorts) throws InterruptedException {
+        long deadline = System.nanoTime() + durationNanos;
+        Thread writer = background("writer", () -> {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, writesPerSec);
+            for (long next = System.nanoTime(); System.nanoTime() < deadline; next += intervalNanos) {
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+                write(writePort);
+            }
+        });
+        Thread sampler = background("lag-sampler", () -> {
+            while (System.nanoTime() < deadline) {
+                for (int port : lagPorts) {
+                    sampleLag(port);
+                }
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        });
+
+        Histogram latency = new Histogram();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int offset = i;
+            background("reader-" + i, () -> {
+                try {
+                    for (int n = offset; System.nanoTime() < deadline; n++) {
+                        long begin = System.nanoTime();
+                        try {
+                            HttpResponse<String> response = send(ports[n % ports.length], "GET", "/api/food/list", null);
+                            if (response.statusCode() == 200) {
+                                latency.recordNanos(System.nanoTime() - begin);
+                            } else {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        writer.join();
+        sampler.join();
+
+        return String.format("%-24s %8d %10.0f %9.1f %9.1f %7d", name, clients, latency.count() * 1e9 / elapsed,
+                latency.percentileMillis(0.5), latency.percentileMillis(0.99), errors.get());
+    }
+
+    // Adds an item and claims it, so the available list changes twice and ends the same size
+    private void write(int port) throws InterruptedException {
+        try {
+            HttpResponse<String> added = send(port, "POST", "/api/food/add", FOOD);
+            Matcher id = ID.matcher(added.body());
+            if (added.statusCode() != 200 || !id.find()) {
+                writeErrors.incrementAndGet();
+                return;
+            }
+            HttpResponse<String> claimed = send(port, "POST", "/api/food/claim",
+                    "{\"foodId\":\"" + id.group(1) + "\",\"receiver\":\"loadtest\"}");
+            if (claimed.statusCode() != 200) {
+                writeErrors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            writeErrors.incrementAndGet();
+        }
+    }
+
+    private void sampleLag(int port) throws InterruptedException {
+        try {
+            Matcher m = LAG.matcher(send(port, "GET", "/api/metrics", null).body());
+            while (m.find()) {
+                long value = Long.parseLong(m.group(2));
+                if ("entries".equals(m.group(1))) {
+                    maxLagEntries = Math.max(maxLagEntries, value);
+                } else {
+                    maxLagMillis = Math.max(maxLagMillis, value);
+                }
+            }
+        } catch (IOException e) {
+            // Skipped; the next sample will do
+        }
+    }
+
+    // Differences between each replica's lists and the primary's, allowing a few seconds to catch up
+    private List<String> compare(int primary, int[] replicas) throws IOException, InterruptedException {
+        List<String> differences = new ArrayList<>();
+        for (String path : new String[] {"/api/food/list?status=all", "/api/request/list"}) {
+            String expected = pages(primary, path);
+            for (int replica : replicas) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                String actual = pages(replica, path);
+                while (!expected.equals(actual) && System.nanoTime() < deadline) {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    actual = pages(replica, path);
+                }
+                if (!expected.equals(actual)) {
+                    differences.add("replica on port " + replica + " differs from the primary on " + path);
+                }
+            }
+        }
+        return differences;
+    }
+
+    // The whole list, then every PAGE-sized page of it with the cursor that follows, so records at
+    // different seqs differ even when the lists hold the same records
+    private String pages(int port, String path) throws IOException, InterruptedException {
+        StringBuilder pages = new StringBuilder(send(port, "GET", path, null).body());
+        String cursor = "";
+        do {
+            HttpResponse<String> page = send(port, "GET", path + (path.contains("?") ? "&" : "?") + "limit=" + PAGE
+                    + (cursor.isEmpty() ? "" : "&cursor=" + cursor), null);
+            cursor = page.headers().firstValue("X-Next-Cursor").orElse("");
+            pages.append('\n').append(page.body()).append('\n').append(cursor);
+        } while (!cursor.isEmpty());
+        return pages.toString();
+    }
+
+    private HttpResponse<String> send(int port, String method, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(30))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Thread background(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
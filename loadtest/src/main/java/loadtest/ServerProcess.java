@@ -0,0 +1,134 @@
+package loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A FoodDonationServer running in a child JVM on an ephemeral port, with its data files in a
+ * fresh temporary directory (removed on close). Child stdout/stderr is echoed with a "[server]" prefix.
+ */
+final class ServerProcess implements AutoCloseable {
+    private static final Pattern STARTED = Pattern.compile("Server started on port (\\d+) \\((.*)\\)");
+    private static final Pattern REPLICATION = Pattern.compile("Replication on .*:(\\d+)");
+
+    final int port;
+    final String executor;
+    /** Port replicas connect to when started with fds.replication.port, otherwise -1. */
+    final int replicationPort;
+    final Path dataDir;
+    private final String[] properties;
+    private final Process process;
+
+    private ServerProcess(Process process, Path dataDir, String[] properties, int port, String executor,
+            int replicationPort) {
+        this.process = process;
+        this.dataDir = dataDir;
+        this.properties = properties;
+        this.port = port;
+        this.executor = executor;
+        this.replicationPort = replicationPort;
+    }
+
+    /** Starts a server with the given -D options (e.g. "fds.executor=virtual") and waits until it listens. */
+    static ServerProcess start(String... properties) throws IOException, InterruptedException {
+        return start(Files.createTempDirectory("fds-loadtest"), properties);
+    }
+
+    /**
+     * Stops this server gracefully (its shutdown hook flushes pending writes) and starts a new one
+     * on the same data directory, which then belongs to the returned process.
+     */
+    ServerProcess restart() throws IOException, InterruptedException {
+        stop();
+        return start(dataDir, properties);
+    }
+
+    /** Starts a server on existing data files in dataDir, which then belongs to the returned process. */
+    static ServerProcess start(Path dataDir, String... properties) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-Dfds.port=0");
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add("FoodDonationServer");
+
+        Process process = new ProcessBuilder(command).directory(dataDir.toFile()).redirectErrorStream(true).start();
+        CompletableFuture<Matcher> started = new CompletableFuture<>();
+        // Printed before the server starts listening
+        AtomicInteger replicationPort = new AtomicInteger(-1);
+        Thread pump = new Thread(() -> {
+            try (BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    System.out.println("[server] " + line);
+                    Matcher m = STARTED.matcher(line);
+                    if (m.find()) {
+                        started.complete(m);
+                    }
+                    Matcher replication = REPLICATION.matcher(line);
+                    if (replication.find()) {
+                        replicationPort.set(Integer.parseInt(replication.group(1)));
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+            started.completeExceptionally(new IOException("Server exited before it started listening"));
+        }, "server-output");
+        pump.setDaemon(true);
+        pump.start();
+
+        try {
+            Matcher m = started.get(30, TimeUnit.SECONDS);
+            return new ServerProcess(process, dataDir, properties, Integer.parseInt(m.group(1)), m.group(2),
+                    replicationPort.get());
+        } catch (Exception e) {
+            process.destroyForcibly();
+            throw new IOException("Could not start FoodDonationServer", e);
+        }
+    }
+
+    // The child runs in dataDir, so relative entries such as loadtest/target/loadtest.jar must be resolved here
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparator);
+            }
+            classPath.append(Path.of(entry).toAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    private void stop() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        stop();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a crash in the middle of a claim by a first-time receiver cannot lose the claimed
+ * item under {@code -Dfds.persistence=slots}.
+ *
+ * <p>The claim appends the receiver's name to food.strings and stores a reference to it in the
+ * item's slot in food.slots. Only the append goes through the writer; the slot page can reach disk
+ * whenever the kernel writes it back. The server runs with {@code fds.fsync=interval} and a long
+ * {@code intervalMs}, so the append stays unforced for a while. {@code copyAfterMs} into the claim,
+ * the data directory is copied with food.strings cut back to its last forced length. That is what
+ * a crash would leave if the slot page had been written back but the append had not. A server
+ * started on the copy must still list the item, available or claimed. If the slot already pointed
+ * past the end of the heap, the item would be dropped.
+ *
+ * <pre>
+ * java -cp loadtest/target/loadtest.jar [-Drounds=3] [-DintervalMs=3000] [-DcopyAfterMs=300]
+ *      loadtest.SlotCrash
+ * </pre>
+ *
+ * The exit status is 1 when a copy loses the item. A round whose claim appended nothing by the
+ * time of the copy checks nothing and is reported as inconclusive.
+ */
+public final class SlotCrash {
+    private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+    private static final String FOOD = "{\"donator\":\"loadtest\",\"name\":\"Rice\",\"quantity\":\"5 kg\",\"location\":\"Saddar\"}";
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        int rounds = Integer.getInteger("rounds", 3);
+        long intervalMs = Long.getLong("intervalMs", 3000);
+        long copyAfterMs = Long.getLong("copyAfterMs", 300);
+
+        SlotCrash test = new SlotCrash();
+        int lost = 0;
+        int checked = 0;
+        try (ServerProcess server = ServerProcess.start("fds.persistence=slots", "fds.fsync=interval",
+                "fds.fsync.intervalMs=" + intervalMs)) {
+            for (int round = 1; round <= rounds; round++) {
+                Boolean survived = test.round(server, round, copyAfterMs);
+                if (survived == null) {
+                    System.out.println("Round " + round + ": inconclusive, the claim appended nothing before the copy");
+                    continue;
+                }
+                checked++;
+                System.out.println("Round " + round + ": " + (survived ? "item survived" : "ITEM LOST"));
+                if (!survived) {
+                    lost++;
+                }
+            }
+        }
+        System.out.println(checked + " rounds checked, " + lost + " lost the item");
+        if (lost > 0 || checked == 0) {
+            System.exit(1);
+        }
+    }
+
+    // Whether the item is listed by a server started on the crash image, or null if the image
+    // doesn't differ from the live files
+    private Boolean round(ServerProcess server, int round, long copyAfterMs) throws IOException, InterruptedException {
+        // Acknowledged only once forced, so this also starts a fresh fsync interval
+        HttpResponse<String> added = send(server.port, "POST", "/api/food/add", FOOD);
+        Matcher id = ID.matcher(added.body());
+        if (added.statusCode() != 200 || !id.find()) {
+            throw new IOException("Adding food failed with " + added.statusCode() + ": " + added.body());
+        }
+        Path heap = server.dataDir.resolve("food.strings");
+        long forced = Files.size(heap);
+
+        String receiver = "crash-" + round + "-" + System.nanoTime();
+        CompletableFuture<HttpResponse<String>> claim = sendAsync(server.port, "POST", "/api/food/claim",
+                "{\"foodId\":\"" + id.group(1) + "\",\"receiver\":\"" + receiver + "\"}");
+        TimeUnit.MILLISECONDS.sleep(copyAfterMs);
+        if (Files.size(heap) == forced) {
+            claim.join();
+            return null;
+        }
+        Path image = Files.createTempDirectory("fds-crash");
+        copy(server.dataDir, image);
+        try (FileChannel channel = FileChannel.open(image.resolve("food.strings"), StandardOpenOption.WRITE)) {
+            channel.truncate(forced);
+        }
+
+        HttpResponse<String> claimed = claim.join();
+        if (claimed.statusCode() != 200) {
+            throw new IOException("Claim failed with " + claimed.statusCode() + ": " + claimed.body());
+        }
+        try (ServerProcess recovered = ServerProcess.start(image, "fds.persistence=slots")) {
+            return send(recovered.port, "GET", "/api/food/list?status=all", null).body()
+                    .contains("\"id\":\"" + id.group(1) + "\"");
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listed = Files.list(from)) {
+            listed.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            Files.copy(file, to.resolve(file.getFileName()));
+        }
+    }
+
+    private HttpResponse<String> send(int port, String method, String path, String body)
+            throws IOException, InterruptedException {
+        return client.send(request(port, method, path, body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsync(int port, String method, String path, String body) {
+        return client.sendAsync(request(port, method, path, body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static HttpRequest request(int port, String method, String path, String body) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(30))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+}